@@ -0,0 +1,402 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+
+///
+/// 単語ベクトルの読み書き.
+///
+/// 次の 3 つの形式に対応する.
+///   - text: word2vec のテキスト形式 ("V n" の行に続いて 1 行に 1 単語)
+///   - bin:  word2vec のバイナリ形式 ("V n" の行に続いて 単語 + 空白 + n 個の float32 (リトルエンディアン) + 改行)
+///   - raw:  ページ境界にそろえた float32 の行列をそのままメモリマップできる形式 (Embeddings.Mapped で開く)
+///
+/// raw の形式 (リトルエンディアン):
+///   0: magic "W2VR", 4: version, 8: 単語数 (int64), 16: 次元数, 20: 予約,
+///   24: 行列の位置 (int64、DATA_OFFSET), 32: 単語列の位置 (int64)
+///   行列は単語数 x 次元数の float32、単語列は UTF-8 で改行区切り.
+///
+final class Embeddings {
+
+  private static final int MAGIC   = 0x52573257; // "W2VR" (リトルエンディアンで読む)
+  private static final int VERSION = 1;
+
+  ///
+  /// raw の行列の位置 (ページ境界)
+  ///
+  private static final long DATA_OFFSET = 4096;
+
+  ///
+  /// 単語ベクトルの行列 (ヒープに読み込んだ Embeddings か、メモリマップした Mapped).
+  ///
+  interface Matrix extends AutoCloseable {
+    int size();
+
+    int dimension();
+
+    List<String> words();
+
+    ///
+    /// 単語 id のベクトルを dst にコピーする.
+    ///
+    void get(int id, float[] dst);
+
+    ///
+    /// @return query と単語 id のベクトルの内積
+    ///
+    float dot(float[] query, int id);
+
+    @Override
+    void close() throws IOException;
+  }
+
+  final List<String> words;
+  final float[] vectors; ///< 単語 i のベクトルは vectors[i*dimension..(i+1)*dimension)
+  final int size;
+  final int dimension;
+
+  Embeddings(final List<String> words, final float[] vectors, final int dimension) {
+    this.words     = words;
+    this.vectors   = vectors;
+    this.size      = words.size();
+    this.dimension = dimension;
+  }
+
+  ///
+  /// 拡張子で形式を選んで書き出す (.bin なら bin、.raw なら raw、それ以外は text).
+  ///
+  void write(final File file) throws IOException {
+    final String name = file.getName();
+    if (name.endsWith(".bin")) {
+      writeBinary(file);
+    } else if (name.endsWith(".raw")) {
+      writeRaw(file);
+    } else {
+      try (PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)), false, "UTF-8")) {
+        writeText(out);
+      }
+    }
+  }
+
+  void writeText(final PrintStream out) {
+    out.printf("%d %d%n", size, dimension);
+    for (int i = 0; i < size; ++i) {
+      StringBuilder builder = new StringBuilder(words.get(i));
+      for (int k = 0; k < dimension; ++k) {
+        builder.append(String.format(" %f", vectors[i * dimension + k]));
+      }
+      out.println(builder);
+    }
+  }
+
+  void writeBinary(final File file) throws IOException {
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+      out.write(String.format("%d %d\n", size, dimension).getBytes(StandardCharsets.UTF_8));
+      final ByteBuffer row = ByteBuffer.allocate(dimension * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      for (int i = 0; i < size; ++i) {
+        out.write(words.get(i).getBytes(StandardCharsets.UTF_8));
+        out.write(' ');
+        row.clear();
+        row.asFloatBuffer().put(vectors, i * dimension, dimension);
+        out.write(row.array());
+        out.write('\n');
+      }
+    }
+  }
+
+  void writeRaw(final File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+           StandardOpenOption.CREATE,
+           StandardOpenOption.TRUNCATE_EXISTING,
+           StandardOpenOption.WRITE)) {
+      final long wordsOffset = DATA_OFFSET + (long) size * dimension * Float.BYTES;
+
+      final ByteBuffer header = ByteBuffer.allocate((int) DATA_OFFSET).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(MAGIC).putInt(VERSION).putLong(size).putInt(dimension).putInt(0)
+        .putLong(DATA_OFFSET).putLong(wordsOffset);
+      header.clear();
+      write(channel, header);
+
+      final ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+      for (int i = 0, length = size * dimension; i < length;) {
+        final int n = Math.min(length - i, buffer.capacity() / Float.BYTES);
+        buffer.clear();
+        buffer.asFloatBuffer().put(vectors, i, n);
+        buffer.limit(n * Float.BYTES);
+        write(channel, buffer);
+        i += n;
+      }
+
+      for (String word : words) {
+        write(channel, ByteBuffer.wrap((word + "\n").getBytes(StandardCharsets.UTF_8)));
+      }
+    }
+  }
+
+  private static void write(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  ///
+  /// 形式を判定して開く (raw ならメモリマップしたまま使い、それ以外はヒープに読み込む).
+  ///
+  static Matrix open(final File file) throws IOException {
+    return Mapped.isRaw(file) ? Mapped.open(file) : read(file).new Heap();
+  }
+
+  ///
+  /// ヒープの行列を Matrix として使う.
+  ///
+  final class Heap implements Matrix {
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public int dimension() {
+      return dimension;
+    }
+
+    @Override
+    public List<String> words() {
+      return words;
+    }
+
+    @Override
+    public void get(final int id, final float[] dst) {
+      System.arraycopy(vectors, id * dimension, dst, 0, dimension);
+    }
+
+    @Override
+    public float dot(final float[] query, final int id) {
+      final int offset = id * dimension;
+      float retval = 0;
+      for (int k = 0; k < dimension; ++k) {
+        retval += query[k] * vectors[offset + k];
+      }
+      return retval;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  ///
+  /// 形式を判定してヒープに読み込む (raw ならメモリマップしてからコピーする).
+  ///
+  static Embeddings read(final File file) throws IOException {
+    if (Mapped.isRaw(file)) {
+      try (Mapped mapped = Mapped.open(file)) {
+        if ((long) mapped.size() * mapped.dimension() > Integer.MAX_VALUE) {
+          throw new IOException("too large to load on heap: " + file);
+        }
+        final float[] vectors = new float[mapped.size() * mapped.dimension()];
+        final float[] row = new float[mapped.dimension()];
+        for (int i = 0, size = mapped.size(); i < size; ++i) {
+          mapped.get(i, row);
+          System.arraycopy(row, 0, vectors, i * row.length, row.length);
+        }
+        return new Embeddings(mapped.words(), vectors, mapped.dimension());
+      }
+    }
+    if (file.getName().endsWith(".bin")) {
+      return readBinary(file);
+    }
+    return readText(file);
+  }
+
+  static Embeddings readText(final File file) throws IOException {
+    try (BufferedReader in = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+      final String[] header = in.readLine().trim().split(" ");
+      final int size      = Integer.parseInt(header[0]);
+      final int dimension = Integer.parseInt(header[1]);
+
+      final List<String> words = new ArrayList<>(size);
+      final float[] vectors = new float[size * dimension];
+      for (int i = 0; i < size; ++i) {
+        final String[] tokens = in.readLine().trim().split(" ");
+        words.add(tokens[0]);
+        for (int j = 0; j < dimension; ++j) {
+          vectors[i * dimension + j] = Float.parseFloat(tokens[j + 1]);
+        }
+      }
+      return new Embeddings(words, vectors, dimension);
+    }
+  }
+
+  static Embeddings readBinary(final File file) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+      final String[] header = readToken(in, '\n').trim().split(" ");
+      final int size      = Integer.parseInt(header[0]);
+      final int dimension = Integer.parseInt(header[1]);
+
+      final List<String> words = new ArrayList<>(size);
+      final float[] vectors = new float[size * dimension];
+      final byte[] row = new byte[dimension * Float.BYTES];
+      for (int i = 0; i < size; ++i) {
+        words.add(readToken(in, ' ').trim());
+        in.readFully(row);
+        ByteBuffer.wrap(row).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(vectors, i * dimension, dimension);
+      }
+      return new Embeddings(words, vectors, dimension);
+    }
+  }
+
+  ///
+  /// 区切り文字まで読む (行頭の改行は読み飛ばす).
+  ///
+  private static String readToken(final DataInputStream in, final char delimiter) throws IOException {
+    byte[] buffer = new byte[64];
+    int length = 0;
+    for (int c; (c = in.read()) != delimiter;) {
+      if (c < 0) {
+        throw new IOException("unexpected end of file");
+      }
+      if ((c == '\n') && (length == 0)) {
+        continue;
+      }
+      if (length == buffer.length) {
+        buffer = Arrays.copyOf(buffer, 2 * length);
+      }
+      buffer[length++] = (byte) c;
+    }
+    return new String(buffer, 0, length, StandardCharsets.UTF_8);
+  }
+
+  ///
+  /// raw 形式をメモリマップした単語ベクトル.
+  ///
+  /// 1 つの MappedByteBuffer は 2GB までなので、行列は行の境界で SEGMENT_SIZE 以下の区間に分けてマップする.
+  /// 読み込み専用でマップするので、同じファイルを開いた複数のプロセスでページキャッシュを共有できる.
+  ///
+  static final class Mapped implements Matrix {
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+    private final int size;
+    private final int dimension;
+    private final int rowsPerSegment;
+    private final FloatBuffer[] segments;
+    private final List<String> words;
+
+    private Mapped(final FileChannel channel) throws IOException {
+      this.channel = channel;
+
+      final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, DATA_OFFSET).order(ByteOrder.LITTLE_ENDIAN);
+      if ((header.getInt(0) != MAGIC) || (header.getInt(4) != VERSION)) {
+        throw new IOException("not a raw embedding file");
+      }
+      final long size        = header.getLong(8);
+      this.dimension         = header.getInt(16);
+      final long dataOffset  = header.getLong(24);
+      final long wordsOffset = header.getLong(32);
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("too many words: " + size);
+      }
+      this.size = (int) size;
+
+      final long rowBytes = (long) dimension * Float.BYTES;
+      this.rowsPerSegment = (int) Math.max(1, SEGMENT_SIZE / rowBytes);
+      this.segments = new FloatBuffer[(int) ((size + rowsPerSegment - 1) / rowsPerSegment)];
+      for (int s = 0; s < segments.length; ++s) {
+        final long first = (long) s * rowsPerSegment;
+        final long rows  = Math.min(rowsPerSegment, size - first);
+        segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + first * rowBytes, rows * rowBytes)
+          .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+      }
+
+      final ByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, wordsOffset, channel.size() - wordsOffset);
+      final byte[] bytes = new byte[tail.remaining()];
+      tail.get(bytes);
+      this.words = new ArrayList<>(this.size);
+      for (int begin = 0, i = 0; i < bytes.length; ++i) {
+        if (bytes[i] == '\n') {
+          words.add(new String(bytes, begin, i - begin, StandardCharsets.UTF_8));
+          begin = i + 1;
+        }
+      }
+      if (words.size() != this.size) {
+        throw new IOException("broken word list");
+      }
+    }
+
+    static boolean isRaw(final File file) throws IOException {
+      if (file.length() < DATA_OFFSET) {
+        return false;
+      }
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        final ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(magic, 0);
+        return magic.getInt(0) == MAGIC;
+      }
+    }
+
+    static Mapped open(final File file) throws IOException {
+      final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      try {
+        return new Mapped(channel);
+      } catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public int dimension() {
+      return dimension;
+    }
+
+    @Override
+    public List<String> words() {
+      return words;
+    }
+
+    @Override
+    public void get(final int id, final float[] dst) {
+      segments[id / rowsPerSegment].get((id % rowsPerSegment) * dimension, dst, 0, dimension);
+    }
+
+    @Override
+    public float dot(final float[] query, final int id) {
+      final FloatBuffer segment = segments[id / rowsPerSegment];
+      final int offset = (id % rowsPerSegment) * dimension;
+      float retval = 0;
+      for (int k = 0; k < dimension; ++k) {
+        retval += query[k] * segment.get(offset + k);
+      }
+      return retval;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
@@ -0,0 +1,90 @@
+///
+/// word2vec の学習で使うベクトル演算.
+///
+/// ベクトルは行列 (float の 1 次元配列) の中の位置で指定する.
+/// 起動時に select() で実装を選ぶ: jdk.incubator.vector が使えれば VectorKernel、使えなければ Kernel.Scalar.
+///
+interface Kernel {
+
+  ///
+  /// Compute a inner product between two vectors.
+  ///
+  /// @param x a matrix containing a vector
+  /// @param i an offset of x
+  /// @param y a matrix containing a vector
+  /// @param j an offset of y
+  /// @param n a dimension
+  /// @return x^T y
+  ///
+  float dot(float[] x, int i, float[] y, int j, int n);
+
+  ///
+  /// Compute saxpby.
+  ///
+  /// @return y = a * x + b * y.
+  ///
+  void saxpby(float a, float[] x, int i, float b, float[] y, int j, int n);
+
+  ///
+  /// 2 つのベクトルを 1 回の走査でまとめて更新する (x の古い値を退避しなくてよい).
+  ///
+  /// @return x = a * y + b * x, y = a * x + b * y (右辺はどちらも更新前の値).
+  ///
+  void update(float a, float b, float[] x, int i, float[] y, int j, int n);
+
+  ///
+  /// 普通のループによる実装.
+  ///
+  final class Scalar implements Kernel {
+    @Override
+    public float dot(final float[] x, final int i, final float[] y, final int j, final int n) {
+      float retval = 0.0f;
+      for (int k = 0; k < n; ++k) {
+        retval += x[i + k] * y[j + k];
+      }
+      return retval;
+    }
+
+    @Override
+    public void saxpby(final float a, final float[] x, final int i,
+                       final float b, final float[] y, final int j, final int n) {
+      for (int k = 0; k < n; ++k) {
+        y[j + k] = a * x[i + k] + b * y[j + k];
+      }
+    }
+
+    @Override
+    public void update(final float a, final float b,
+                       final float[] x, final int i, final float[] y, final int j, final int n) {
+      for (int k = 0; k < n; ++k) {
+        final float xk = x[i + k];
+        final float yk = y[j + k];
+        x[i + k] = a * yk + b * xk;
+        y[j + k] = a * xk + b * yk;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "scalar";
+    }
+  }
+
+  ///
+  /// 実装を選ぶ.
+  ///
+  /// システムプロパティ kernel に scalar を指定するか、jdk.incubator.vector が読み込めなければ Scalar を使う.
+  /// VectorKernel (vector/VectorKernel.java) はリフレクションで読み込むので、ビルドしていなくても、
+  /// モジュールが無くても Word2Vec 自体は動く.
+  ///
+  static Kernel select() {
+    if (!"scalar".equals(System.getProperty("kernel"))) {
+      try {
+        return (Kernel) Class.forName("VectorKernel").getDeclaredConstructor().newInstance();
+      } catch (ReflectiveOperationException | LinkageError e) {
+        // fall back
+      }
+    }
+    return new Scalar();
+  }
+}
@@ -0,0 +1,481 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+///
+/// 単語ベクトルのコサイン類似度による近傍探索とアナロジー.
+///
+/// ベクトルはコピーせずに Embeddings.Matrix から読み (raw ならメモリマップしたまま)、行ごとのノルムの逆数だけを持つ.
+///   - 総当たり: 行をブロックに分けて並列に走査する (複数のクエリはブロックごとにまとめて処理する)
+///   - 近似: ランダム射影による LSH で候補を絞って、候補だけ総当たりで並べ替える
+///
+///   Usage: java -cp . NearestNeighbors vectors-file k [tables bits] < queries.txt
+///
+///   クエリは 1 行に 1 つで、単語 1 つなら近傍、単語 3 つ (a b c) なら a:b = c:? のアナロジー.
+///
+final class NearestNeighbors {
+
+  ///
+  /// 総当たりで 1 度に走査する行数
+  ///
+  private static final int BLOCK_SIZE = 4096;
+
+  ///
+  /// 単語数
+  ///
+  private final int size;
+
+  ///
+  /// 次元数
+  ///
+  private final int dimension;
+
+  ///
+  /// 単語ベクトル
+  ///
+  private final Embeddings.Matrix matrix;
+
+  ///
+  /// 行ごとのノルムの逆数 (零ベクトルは 1)
+  ///
+  private final float[] scales;
+
+  ///
+  /// 検索結果.
+  ///
+  static final class Neighbor {
+    final int   id;
+    final float similarity;
+
+    Neighbor(final int id, final float similarity) {
+      this.id         = id;
+      this.similarity = similarity;
+    }
+  }
+
+  ///
+  /// @param matrix 単語ベクトル (閉じるまで使う)
+  ///
+  NearestNeighbors(final Embeddings.Matrix matrix) {
+    this.matrix    = matrix;
+    this.size      = matrix.size();
+    this.dimension = matrix.dimension();
+    this.scales    = new float[size];
+    forEachRow((id, row) -> {
+      double norm = 0;
+      for (int k = 0; k < dimension; ++k) {
+        norm += row[k] * row[k];
+      }
+      scales[id] = (norm > 0) ? (float) (1.0 / Math.sqrt(norm)) : 1;
+    });
+  }
+
+  interface RowConsumer {
+    void accept(int id, float[] row);
+  }
+
+  ///
+  /// 全ての行をブロックごとに並列に読んで consumer に渡す (row はブロック内で使い回す).
+  ///
+  static void forEachRow(final Embeddings.Matrix matrix, final RowConsumer consumer) {
+    final int size = matrix.size();
+    IntStream.range(0, (size + BLOCK_SIZE - 1) / BLOCK_SIZE).parallel().forEach(b -> {
+      final float[] row = new float[matrix.dimension()];
+      for (int id = b * BLOCK_SIZE, end = Math.min(size, id + BLOCK_SIZE); id < end; ++id) {
+        matrix.get(id, row);
+        consumer.accept(id, row);
+      }
+    });
+  }
+
+  private void forEachRow(final RowConsumer consumer) {
+    forEachRow(matrix, consumer);
+  }
+
+  int size() {
+    return size;
+  }
+
+  static void normalize(final float[] x, final int offset, final int n) {
+    double norm = 0;
+    for (int k = 0; k < n; ++k) {
+      norm += x[offset + k] * x[offset + k];
+    }
+    if (norm > 0) {
+      final float scale = (float) (1.0 / Math.sqrt(norm));
+      for (int k = 0; k < n; ++k) {
+        x[offset + k] *= scale;
+      }
+    }
+  }
+
+  private float dot(final float[] query, final int id) {
+    return matrix.dot(query, id) * scales[id];
+  }
+
+  ///
+  /// 類似度の上位 k 件を保持するヒープ (根が最小).
+  ///
+  static final class TopK {
+    private final int[]   ids;
+    private final float[] scores;
+    private int count;
+
+    TopK(final int k) {
+      ids    = new int  [k];
+      scores = new float[k];
+    }
+
+    void offer(final int id, final float score) {
+      final int k = ids.length;
+      if (count < k) {
+        int i = count++;
+        while (i > 0) {
+          final int parent = (i - 1) / 2;
+          if (scores[parent] <= score) {
+            break;
+          }
+          ids[i] = ids[parent]; scores[i] = scores[parent];
+          i = parent;
+        }
+        ids[i] = id; scores[i] = score;
+      } else if ((k > 0) && (score > scores[0])) {
+        int i = 0;
+        for (int child; (child = 2 * i + 1) < k; i = child) {
+          if ((child + 1 < k) && (scores[child + 1] < scores[child])) {
+            ++child;
+          }
+          if (scores[child] >= score) {
+            break;
+          }
+          ids[i] = ids[child]; scores[i] = scores[child];
+        }
+        ids[i] = id; scores[i] = score;
+      }
+    }
+
+    void addAll(final TopK other) {
+      for (int i = 0; i < other.count; ++i) {
+        offer(other.ids[i], other.scores[i]);
+      }
+    }
+
+    Neighbor[] toArray() {
+      final Neighbor[] retval = new Neighbor[count];
+      for (int i = 0; i < count; ++i) {
+        retval[i] = new Neighbor(ids[i], scores[i]);
+      }
+      Arrays.sort(retval, (a, b) -> Float.compare(b.similarity, a.similarity));
+      return retval;
+    }
+  }
+
+  static boolean contains(final int[] exclude, final int id) {
+    for (int e : exclude) {
+      if (e == id) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  ///
+  /// 総当たりで複数のクエリの近傍を求める.
+  ///
+  /// 行をブロックに分けてブロックごとに並列に処理し、ブロック内では全クエリを順に当てる.
+  ///
+  /// @param queries 正規化したクエリ
+  /// @param k       件数
+  /// @param exclude クエリごとに結果から除く単語
+  ///
+  Neighbor[][] search(final float[][] queries, final int k, final int[][] exclude) {
+    final int Q = queries.length;
+    final int numBlocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+    final TopK[][] partial = new TopK[numBlocks][];
+    IntStream.range(0, numBlocks).parallel().forEach(b -> {
+      final TopK[] heaps = new TopK[Q];
+      final int begin = b * BLOCK_SIZE;
+      final int end   = Math.min(size, begin + BLOCK_SIZE);
+      for (int q = 0; q < Q; ++q) {
+        final TopK heap = heaps[q] = new TopK(k);
+        for (int id = begin; id < end; ++id) {
+          if (!contains(exclude[q], id)) {
+            heap.offer(id, dot(queries[q], id));
+          }
+        }
+      }
+      partial[b] = heaps;
+    });
+
+    final Neighbor[][] retval = new Neighbor[Q][];
+    for (int q = 0; q < Q; ++q) {
+      final TopK heap = new TopK(k);
+      for (TopK[] heaps : partial) {
+        heap.addAll(heaps[q]);
+      }
+      retval[q] = heap.toArray();
+    }
+    return retval;
+  }
+
+  ///
+  /// 総当たりで近傍を求める.
+  ///
+  Neighbor[] search(final float[] query, final int k, final int... exclude) {
+    return search(new float[][] { query }, k, new int[][] { exclude })[0];
+  }
+
+  ///
+  /// 単語 id の近傍 (自分自身は除く).
+  ///
+  Neighbor[] neighbors(final int id, final int k) {
+    return search(vector(id), k, id);
+  }
+
+  ///
+  /// a:b = c:? のアナロジー (b - a + c に近い単語、a, b, c は除く).
+  ///
+  Neighbor[] analogy(final int a, final int b, final int c, final int k) {
+    return search(analogyQuery(a, b, c), k, a, b, c);
+  }
+
+  ///
+  /// @return 単語 id の正規化したベクトル
+  ///
+  float[] vector(final int id) {
+    final float[] retval = new float[dimension];
+    matrix.get(id, retval);
+    for (int k = 0; k < dimension; ++k) {
+      retval[k] *= scales[id];
+    }
+    return retval;
+  }
+
+  float[] analogyQuery(final int a, final int b, final int c) {
+    final float[] x = vector(a);
+    final float[] y = vector(b);
+    final float[] z = vector(c);
+    final float[] query = new float[dimension];
+    for (int k = 0; k < dimension; ++k) {
+      query[k] = y[k] - x[k] + z[k];
+    }
+    normalize(query, 0, dimension);
+    return query;
+  }
+
+  ///
+  /// ランダム射影 (超平面の符号) による LSH の索引.
+  ///
+  /// numTables 個の表それぞれで numBits 本の超平面の符号をハッシュ値にする.
+  /// 検索ではクエリのバケットとハミング距離 1 のバケットの単語を候補にして、候補だけ内積で並べ替える.
+  ///
+  final class LSH {
+    private final int numTables;
+    private final int numBits;
+    private final float[][] planes;             ///< 表ごとの超平面 (numBits 行 dimension 列)
+    private final List<Map<Integer, int[]>> tables = new ArrayList<>();
+
+    LSH(final int numTables, final int numBits, final long seed) {
+      if (numBits > 30) {
+        throw new IllegalArgumentException("too many bits: " + numBits);
+      }
+      this.numTables = numTables;
+      this.numBits   = numBits;
+      this.planes    = new float[numTables][numBits * dimension];
+
+      final Random engine = new Random(seed);
+      for (float[] plane : planes) {
+        for (int i = 0, length = plane.length; i < length; ++i) {
+          plane[i] = (float) engine.nextGaussian();
+        }
+      }
+
+      for (int t = 0; t < numTables; ++t) {
+        final int[] codes = new int[size];
+        final int table = t;
+        forEachRow((id, row) -> codes[id] = hash(table, row, 0)); // 符号はノルムによらない
+
+        final Map<Integer, int[]> buckets = new HashMap<>();
+        final Map<Integer, Integer> counts = new HashMap<>();
+        for (int code : codes) {
+          counts.merge(code, 1, Integer::sum);
+        }
+        for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+          buckets.put(entry.getKey(), new int[entry.getValue()]);
+          entry.setValue(0);
+        }
+        for (int id = 0; id < size; ++id) {
+          final int code = codes[id];
+          final int index = counts.merge(code, 1, Integer::sum) - 1;
+          buckets.get(code)[index] = id;
+        }
+        tables.add(buckets);
+      }
+    }
+
+    private int hash(final int table, final float[] x, final int offset) {
+      final float[] plane = planes[table];
+      int code = 0;
+      for (int b = 0; b < numBits; ++b) {
+        float dot = 0;
+        for (int k = 0; k < dimension; ++k) {
+          dot += plane[b * dimension + k] * x[offset + k];
+        }
+        if (dot >= 0) {
+          code |= 1 << b;
+        }
+      }
+      return code;
+    }
+
+    ///
+    /// 近似的に近傍を求める.
+    ///
+    Neighbor[] search(final float[] query, final int k, final int... exclude) {
+      int[] candidates = new int[64];
+      int numCandidates = 0;
+      for (int t = 0; t < numTables; ++t) {
+        final Map<Integer, int[]> buckets = tables.get(t);
+        final int code = hash(t, query, 0);
+        for (int b = -1; b < numBits; ++b) {
+          final int[] bucket = buckets.get((b < 0) ? code : (code ^ (1 << b)));
+          if (bucket == null) {
+            continue;
+          }
+          if (numCandidates + bucket.length > candidates.length) {
+            candidates = Arrays.copyOf(candidates, Math.max(2 * candidates.length, numCandidates + bucket.length));
+          }
+          System.arraycopy(bucket, 0, candidates, numCandidates, bucket.length);
+          numCandidates += bucket.length;
+        }
+      }
+
+      Arrays.sort(candidates, 0, numCandidates);
+      final TopK heap = new TopK(k);
+      for (int i = 0; i < numCandidates; ++i) {
+        final int id = candidates[i];
+        if (((i > 0) && (candidates[i - 1] == id)) || contains(exclude, id)) {
+          continue;
+        }
+        heap.offer(id, dot(query, id));
+      }
+      return heap.toArray();
+    }
+  }
+
+  ///
+  /// ランダムに選んだ単語をクエリにして、LSH の総当たりに対する再現率と 1 クエリあたりの時間を出力する.
+  ///
+  void evaluate(final LSH lsh, final int numQueries, final int k, final long seed) {
+    final Random engine = new Random(seed);
+    final int[] ids = new int[numQueries];
+    for (int q = 0; q < numQueries; ++q) {
+      ids[q] = engine.nextInt(size);
+    }
+
+    long bruteTime = 0;
+    long lshTime   = 0;
+    long hits      = 0;
+    for (int id : ids) {
+      final float[] query = vector(id);
+
+      long start = System.nanoTime();
+      final Neighbor[] truth = search(query, k, id);
+      bruteTime += System.nanoTime() - start;
+
+      start = System.nanoTime();
+      final Neighbor[] approx = lsh.search(query, k, id);
+      lshTime += System.nanoTime() - start;
+
+      for (Neighbor a : approx) {
+        for (Neighbor t : truth) {
+          if (a.id == t.id) {
+            ++hits;
+            break;
+          }
+        }
+      }
+    }
+
+    System.err.printf("LSH tables=%d bits=%d: recall@%d=%.4f brute-force=%.3fms lsh=%.3fms%n",
+      lsh.numTables, lsh.numBits, k,
+      (double) hits / ((long) numQueries * Math.min(k, size - 1)),
+      bruteTime * 1e-6 / numQueries,
+      lshTime   * 1e-6 / numQueries);
+  }
+
+  public static void main(String[] args) throws IOException {
+    if ((args.length != 2) && (args.length != 4)) {
+      System.err.println("Usage: java NearestNeighbors vectors-file k [tables bits] < queries.txt");
+      return;
+    }
+
+    final int k = Integer.parseInt(args[1]);
+
+    try (Embeddings.Matrix embeddings = Embeddings.open(new File(args[0]))) {
+      final NearestNeighbors engine = new NearestNeighbors(embeddings);
+      final List<String> words = embeddings.words();
+
+      final Map<String, Integer> ids = new HashMap<>();
+      for (int i = 0, size = words.size(); i < size; ++i) {
+        ids.put(words.get(i), i);
+      }
+
+      final LSH lsh;
+      if (args.length == 4) {
+        lsh = engine.new LSH(Integer.parseInt(args[2]), Integer.parseInt(args[3]), 0);
+        engine.evaluate(lsh, Math.min(1000, engine.size()), k, 1);
+      } else {
+        lsh = null;
+      }
+
+      try (BufferedReader in = new BufferedReader(new InputStreamReader(System.in))) {
+        for (String line; (line = in.readLine()) != null;) {
+          final String[] query = line.trim().split("\\s+");
+          final int[] q = new int[query.length];
+          boolean known = true;
+          for (int i = 0; i < query.length; ++i) {
+            final Integer id = ids.get(query[i]);
+            if (id == null) {
+              System.out.printf("%s: unknown word%n", query[i]);
+              known = false;
+              break;
+            }
+            q[i] = id;
+          }
+          if (!known) {
+            continue;
+          }
+
+          final Neighbor[] result;
+          if (q.length == 1) {
+            result = (lsh != null) ? lsh.search(engine.vector(q[0]), k, q[0]) : engine.neighbors(q[0], k);
+          } else if (q.length == 3) {
+            result = (lsh != null)
+              ? lsh.search(engine.analogyQuery(q[0], q[1], q[2]), k, q)
+              : engine.analogy(q[0], q[1], q[2], k);
+          } else {
+            System.out.println("query must be a word or three words");
+            continue;
+          }
+
+          StringBuilder builder = new StringBuilder(line.trim()).append(":");
+          for (Neighbor neighbor : result) {
+            builder.append(String.format(" %s(%.3f)", words.get(neighbor.id), neighbor.similarity));
+          }
+          System.out.println(builder);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,545 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+///
+/// 単語ベクトルを量子化して、圧縮したまま近傍探索する.
+///
+/// ベクトルは正規化してから量子化するので、スコアはコサイン類似度の近似になる.
+///   - Int8: 行ごとのスケールで各成分を int8 にする (float32 の 1/4)
+///   - PQ:   次元を M 個の部分空間に分けて、部分空間ごとに k-means で学習した 256 個の代表点の番号 (1 byte) で表す
+///           (float32 で n 次元なら 4n/M 分の 1)
+///
+/// クエリは float のまま使う (非対称距離). PQ ではクエリと各部分空間の代表点の内積の表を先に作り、
+/// 1 行のスコアを M 回の表引きの和で求める.
+///
+///   Usage: java -cp . QuantizedEmbeddings vectors-file int8|pq M k [output-file]
+///
+///   NearestNeighbors の総当たりに対する recall@k とメモリ量を出力し、output-file があれば書き出す.
+///
+final class QuantizedEmbeddings {
+
+  private static final int MAGIC = 0x51573257; // "W2VQ"
+
+  ///
+  /// 総当たりで 1 度に走査する行数
+  ///
+  private static final int BLOCK_SIZE = 4096;
+
+  ///
+  /// 量子化したベクトルの集合.
+  ///
+  interface Index {
+    int size();
+
+    int dimension();
+
+    ///
+    /// @return 量子化したベクトルのバイト数
+    ///
+    long bytes();
+
+    ///
+    /// @param query 正規化したクエリ
+    /// @return 単語 id とクエリの類似度 (の近似) を返す関数
+    ///
+    Scorer scorer(float[] query);
+
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  interface Scorer {
+    float score(int id);
+  }
+
+  ///
+  /// 行ごとのスケールによる int8 量子化 (x_i ≒ scale_i * code_i).
+  ///
+  static final class Int8 implements Index {
+    private final int size;
+    private final int dimension;
+    private final byte[]  codes;  ///< 単語 i は codes[i*dimension..(i+1)*dimension)
+    private final float[] scales;
+
+    private Int8(final int size, final int dimension, final byte[] codes, final float[] scales) {
+      this.size      = size;
+      this.dimension = dimension;
+      this.codes     = codes;
+      this.scales    = scales;
+    }
+
+    ///
+    /// 行を 1 つずつ読んで正規化してから量子化する.
+    ///
+    static Int8 quantize(final Embeddings.Matrix matrix) {
+      final int size      = matrix.size();
+      final int dimension = matrix.dimension();
+      final byte[]  codes  = new byte [size * dimension];
+      final float[] scales = new float[size];
+      NearestNeighbors.forEachRow(matrix, (i, row) -> {
+        NearestNeighbors.normalize(row, 0, dimension);
+        float max = 0;
+        for (int k = 0; k < dimension; ++k) {
+          max = Math.max(max, Math.abs(row[k]));
+        }
+        final float scale = (max > 0) ? max / 127 : 1;
+        for (int k = 0; k < dimension; ++k) {
+          codes[i * dimension + k] = (byte) Math.round(row[k] / scale);
+        }
+        scales[i] = scale;
+      });
+      return new Int8(size, dimension, codes, scales);
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public int dimension() {
+      return dimension;
+    }
+
+    @Override
+    public long bytes() {
+      return (long) codes.length + (long) scales.length * Float.BYTES;
+    }
+
+    @Override
+    public Scorer scorer(final float[] query) {
+      return id -> {
+        final int offset = id * dimension;
+        float retval = 0;
+        for (int k = 0; k < dimension; ++k) {
+          retval += query[k] * codes[offset + k];
+        }
+        return retval * scales[id];
+      };
+    }
+
+    @Override
+    public void write(final DataOutputStream out) throws IOException {
+      out.write(codes);
+      for (float scale : scales) {
+        out.writeFloat(scale);
+      }
+    }
+
+    static Int8 read(final DataInputStream in, final int size, final int dimension) throws IOException {
+      final byte[]  codes  = new byte [size * dimension];
+      final float[] scales = new float[size];
+      in.readFully(codes);
+      for (int i = 0; i < size; ++i) {
+        scales[i] = in.readFloat();
+      }
+      return new Int8(size, dimension, codes, scales);
+    }
+  }
+
+  ///
+  /// 直積量子化 (product quantization).
+  ///
+  /// 部分空間 m は次元 [m*n/M, (m+1)*n/M) で、代表点は centroids[m] に NUM_CENTROIDS 個並べて持つ.
+  ///
+  static final class PQ implements Index {
+
+    static final int NUM_CENTROIDS = 256;
+
+    ///
+    /// k-means の学習に使う行数の上限
+    ///
+    private static final int MAX_TRAINING_ROWS = 1 << 16;
+
+    private final int size;
+    private final int dimension;
+    private final int M;
+    private final int[] begins;          ///< 部分空間 m は次元 [begins[m], begins[m+1])
+    private final int K;                 ///< 代表点の数 (単語数が少なければ NUM_CENTROIDS より少ない)
+    private final float[][] centroids;   ///< centroids[m][c*d_m..(c+1)*d_m)
+    private final byte[] codes;          ///< 単語 i の部分空間 m の代表点は codes[i*M+m]
+
+    private PQ(final int size, final int dimension, final int M, final int K,
+               final float[][] centroids, final byte[] codes) {
+      this.size      = size;
+      this.dimension = dimension;
+      this.M         = M;
+      this.K         = K;
+      this.begins    = new int[M + 1];
+      for (int m = 0; m <= M; ++m) {
+        begins[m] = m * dimension / M;
+      }
+      this.centroids = centroids;
+      this.codes     = codes;
+    }
+
+    ///
+    /// 部分空間ごとに k-means で代表点を学習して、全ての行を符号化する.
+    ///
+    /// 学習に使う行 (MAX_TRAINING_ROWS 行まで) だけを正規化してヒープにコピーし、符号化は行を 1 つずつ読んで行う.
+    ///
+    /// @param M          部分空間の数 (次元数以下)
+    /// @param iterations k-means の反復回数
+    ///
+    static PQ quantize(final Embeddings.Matrix matrix, final int M, final int iterations, final long seed) {
+      final int size      = matrix.size();
+      final int dimension = matrix.dimension();
+      if ((M < 1) || (M > dimension)) {
+        throw new IllegalArgumentException("M must be in [1, " + dimension + "]: " + M);
+      }
+      final int K = Math.min(NUM_CENTROIDS, size);
+      final PQ pq = new PQ(size, dimension, M, K, new float[M][], new byte[size * M]);
+
+      // 学習に使う行
+      final Random engine = new Random(seed);
+      final int[] sample;
+      if (size <= MAX_TRAINING_ROWS) {
+        sample = IntStream.range(0, size).toArray();
+      } else {
+        sample = engine.ints(MAX_TRAINING_ROWS, 0, size).toArray();
+      }
+      final long[] seeds = engine.longs(M).toArray();
+
+      final float[] training = new float[sample.length * dimension];
+      final float[] row = new float[dimension];
+      for (int s = 0; s < sample.length; ++s) {
+        matrix.get(sample[s], row);
+        NearestNeighbors.normalize(row, 0, dimension);
+        System.arraycopy(row, 0, training, s * dimension, dimension);
+      }
+
+      IntStream.range(0, M).parallel().forEach(m -> {
+        pq.centroids[m] = pq.kmeans(training, sample.length, m, iterations, new Random(seeds[m]));
+      });
+      NearestNeighbors.forEachRow(matrix, (i, x) -> {
+        NearestNeighbors.normalize(x, 0, dimension);
+        for (int m = 0; m < M; ++m) {
+          pq.codes[i * M + m] = (byte) pq.nearest(x, 0, m);
+        }
+      });
+      return pq;
+    }
+
+    ///
+    /// @param vectors 学習に使う行 (numRows 行)
+    ///
+    private float[] kmeans(final float[] vectors, final int numRows, final int m,
+                           final int iterations, final Random engine) {
+      final int begin = begins[m];
+      final int d     = begins[m + 1] - begin;
+
+      // 初期値は相異なる行
+      final float[] centers = new float[K * d];
+      final int[] order = IntStream.range(0, numRows).toArray();
+      for (int c = 0; c < K; ++c) {
+        final int j = c + engine.nextInt(order.length - c);
+        final int t = order[c]; order[c] = order[j]; order[j] = t;
+        System.arraycopy(vectors, order[c] * dimension + begin, centers, c * d, d);
+      }
+
+      final int[]    assign = new int[numRows];
+      final double[] sums   = new double[K * d];
+      final int[]    counts = new int[K];
+      for (int n = 0; n < iterations; ++n) {
+        for (int s = 0; s < numRows; ++s) {
+          assign[s] = nearest(centers, d, vectors, s * dimension + begin);
+        }
+
+        Arrays.fill(sums, 0);
+        Arrays.fill(counts, 0);
+        for (int s = 0; s < numRows; ++s) {
+          final int c = assign[s];
+          final int offset = s * dimension + begin;
+          for (int k = 0; k < d; ++k) {
+            sums[c * d + k] += vectors[offset + k];
+          }
+          ++counts[c];
+        }
+        for (int c = 0; c < K; ++c) {
+          if (counts[c] == 0) {
+            // 空になった代表点はランダムな行で置き換える
+            final int offset = engine.nextInt(numRows) * dimension + begin;
+            System.arraycopy(vectors, offset, centers, c * d, d);
+            continue;
+          }
+          for (int k = 0; k < d; ++k) {
+            centers[c * d + k] = (float) (sums[c * d + k] / counts[c]);
+          }
+        }
+      }
+      return centers;
+    }
+
+    ///
+    /// @return vectors[offset..] の部分空間 (次元 d) に最も近い代表点
+    ///
+    private int nearest(final float[] centers, final int d, final float[] vectors, final int offset) {
+      int   best     = 0;
+      float bestDist = Float.POSITIVE_INFINITY;
+      for (int c = 0; c < K; ++c) {
+        float dist = 0;
+        for (int k = 0; k < d; ++k) {
+          final float diff = vectors[offset + k] - centers[c * d + k];
+          dist += diff * diff;
+        }
+        if (dist < bestDist) {
+          bestDist = dist;
+          best     = c;
+        }
+      }
+      return best;
+    }
+
+    private int nearest(final float[] vectors, final int offset, final int m) {
+      return nearest(centroids[m], begins[m + 1] - begins[m], vectors, offset + begins[m]);
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public int dimension() {
+      return dimension;
+    }
+
+    @Override
+    public long bytes() {
+      return (long) codes.length + (long) K * dimension * Float.BYTES;
+    }
+
+    ///
+    /// クエリと各部分空間の代表点の内積の表 (table[m*K+c]) を作って、スコアは表引きの和で求める.
+    ///
+    @Override
+    public Scorer scorer(final float[] query) {
+      final float[] table = new float[M * K];
+      for (int m = 0; m < M; ++m) {
+        final int begin = begins[m];
+        final int d     = begins[m + 1] - begin;
+        final float[] centers = centroids[m];
+        for (int c = 0; c < K; ++c) {
+          float dot = 0;
+          for (int k = 0; k < d; ++k) {
+            dot += query[begin + k] * centers[c * d + k];
+          }
+          table[m * K + c] = dot;
+        }
+      }
+      return id -> {
+        final int offset = id * M;
+        float retval = 0;
+        for (int m = 0; m < M; ++m) {
+          retval += table[m * K + (codes[offset + m] & 0xff)];
+        }
+        return retval;
+      };
+    }
+
+    @Override
+    public void write(final DataOutputStream out) throws IOException {
+      out.writeInt(M);
+      out.writeInt(K);
+      for (float[] centers : centroids) {
+        for (float x : centers) {
+          out.writeFloat(x);
+        }
+      }
+      out.write(codes);
+    }
+
+    static PQ read(final DataInputStream in, final int size, final int dimension) throws IOException {
+      final int M = in.readInt();
+      final int K = in.readInt();
+      final float[][] centroids = new float[M][];
+      for (int m = 0; m < M; ++m) {
+        centroids[m] = new float[K * ((m + 1) * dimension / M - m * dimension / M)];
+        for (int j = 0; j < centroids[m].length; ++j) {
+          centroids[m][j] = in.readFloat();
+        }
+      }
+      final byte[] codes = new byte[size * M];
+      in.readFully(codes);
+      return new PQ(size, dimension, M, K, centroids, codes);
+    }
+  }
+
+  final List<String> words;
+  final Index index;
+
+  QuantizedEmbeddings(final List<String> words, final Index index) {
+    this.words = words;
+    this.index = index;
+  }
+
+  static QuantizedEmbeddings int8(final Embeddings.Matrix embeddings) {
+    return new QuantizedEmbeddings(embeddings.words(), Int8.quantize(embeddings));
+  }
+
+  static QuantizedEmbeddings pq(final Embeddings.Matrix embeddings, final int M, final int iterations, final long seed) {
+    return new QuantizedEmbeddings(embeddings.words(), PQ.quantize(embeddings, M, iterations, seed));
+  }
+
+  ///
+  /// 総当たりで近傍を求める (行をブロックに分けて並列に走査する).
+  ///
+  /// @param query   正規化したクエリ
+  /// @param k       件数
+  /// @param exclude 結果から除く単語
+  ///
+  NearestNeighbors.Neighbor[] search(final float[] query, final int k, final int... exclude) {
+    final Scorer scorer = index.scorer(query);
+    final int size = index.size();
+    final int numBlocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+    final NearestNeighbors.TopK[] partial = new NearestNeighbors.TopK[numBlocks];
+    IntStream.range(0, numBlocks).parallel().forEach(b -> {
+      final NearestNeighbors.TopK heap = partial[b] = new NearestNeighbors.TopK(k);
+      for (int id = b * BLOCK_SIZE, end = Math.min(size, id + BLOCK_SIZE); id < end; ++id) {
+        if (!NearestNeighbors.contains(exclude, id)) {
+          heap.offer(id, scorer.score(id));
+        }
+      }
+    });
+
+    final NearestNeighbors.TopK heap = new NearestNeighbors.TopK(k);
+    for (NearestNeighbors.TopK h : partial) {
+      heap.addAll(h);
+    }
+    return heap.toArray();
+  }
+
+  ///
+  /// 書き出す (ビッグエンディアン).
+  ///
+  ///   magic "W2VQ", 種類 (1: int8, 2: pq), 単語数, 次元数, 量子化したベクトル, 単語 (writeUTF)
+  ///
+  void write(final File file) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt((index instanceof Int8) ? 1 : 2);
+      out.writeInt(index.size());
+      out.writeInt(index.dimension());
+      index.write(out);
+      for (String word : words) {
+        out.writeUTF(word);
+      }
+    }
+  }
+
+  static QuantizedEmbeddings read(final File file) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("not a quantized embeddings file: " + file);
+      }
+      final int type      = in.readInt();
+      final int size      = in.readInt();
+      final int dimension = in.readInt();
+      final Index index;
+      switch (type) {
+      case 1:
+        index = Int8.read(in, size, dimension);
+        break;
+      case 2:
+        index = PQ.read(in, size, dimension);
+        break;
+      default:
+        throw new IOException("unknown quantization: " + type);
+      }
+      final List<String> words = new ArrayList<>(size);
+      for (int i = 0; i < size; ++i) {
+        words.add(in.readUTF());
+      }
+      return new QuantizedEmbeddings(words, index);
+    }
+  }
+
+  ///
+  /// ランダムに選んだ単語をクエリにして、総当たり (float) に対する再現率と 1 クエリあたりの時間を出力する.
+  ///
+  void evaluate(final NearestNeighbors exact, final int numQueries, final int k, final long seed) {
+    final Random engine = new Random(seed);
+    final int size = index.size();
+
+    long exactTime     = 0;
+    long quantizedTime = 0;
+    long hits          = 0;
+    for (int q = 0; q < numQueries; ++q) {
+      final int id = engine.nextInt(size);
+      final float[] query = exact.vector(id);
+
+      long start = System.nanoTime();
+      final NearestNeighbors.Neighbor[] truth = exact.search(query, k, id);
+      exactTime += System.nanoTime() - start;
+
+      start = System.nanoTime();
+      final NearestNeighbors.Neighbor[] approx = search(query, k, id);
+      quantizedTime += System.nanoTime() - start;
+
+      for (NearestNeighbors.Neighbor a : approx) {
+        for (NearestNeighbors.Neighbor t : truth) {
+          if (a.id == t.id) {
+            ++hits;
+            break;
+          }
+        }
+      }
+    }
+
+    System.err.printf("recall@%d=%.4f float=%.3fms quantized=%.3fms%n",
+      k, (double) hits / ((long) numQueries * Math.min(k, size - 1)),
+      exactTime     * 1e-6 / numQueries,
+      quantizedTime * 1e-6 / numQueries);
+  }
+
+  public static void main(String[] args) throws IOException {
+    if ((args.length != 4) && (args.length != 5)) {
+      System.err.println("Usage: java QuantizedEmbeddings vectors-file int8|pq M k [output-file]");
+      return;
+    }
+
+    final int M = Integer.parseInt(args[2]);
+    final int k = Integer.parseInt(args[3]);
+
+    try (Embeddings.Matrix embeddings = Embeddings.open(new File(args[0]))) {
+      long start = System.nanoTime();
+      final QuantizedEmbeddings quantized;
+      switch (args[1]) {
+      case "int8":
+        quantized = int8(embeddings);
+        break;
+      case "pq":
+        quantized = pq(embeddings, M, 25, 0);
+        break;
+      default:
+        System.err.println("unknown quantization: " + args[1]);
+        return;
+      }
+      System.err.printf("quantize     = %.3fs%n", (System.nanoTime() - start) * 1e-9);
+
+      final long floatBytes = (long) embeddings.size() * embeddings.dimension() * Float.BYTES;
+      System.err.printf("float32      = %d bytes%n", floatBytes);
+      System.err.printf("%-12s = %d bytes (1/%.1f)%n", args[1], quantized.index.bytes(),
+        (double) floatBytes / quantized.index.bytes());
+
+      final NearestNeighbors exact = new NearestNeighbors(embeddings);
+      quantized.evaluate(exact, Math.min(1000, embeddings.size()), k, 1);
+
+      if (args.length == 5) {
+        quantized.write(new File(args[4]));
+      }
+    }
+  }
+}
@@ -1,11 +1,50 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
 import java.util.Random;
 
+///
+/// word2vec (skip-gram with negative sampling) のテスト実装
+///
+///   Build: javac -d . *.java [&& javac --add-modules jdk.incubator.vector -cp . -d . vector/VectorKernel.java]
+///   Usage: java [--add-modules jdk.incubator.vector] -cp . Word2Vec [-threads n] [-min-count n] [-sample t] [-output file]
+///                corpus-file dimension window negative epocs alpha lambda > vectors.txt
+///
+///   negative に 0 を指定すると階層的ソフトマックスで学習する.
+///
 final class Word2Vec {
 
   ///
-  /// Word vectors
+  /// ベクトル演算の実装 (起動時に選ぶ)
+  ///
+  private static final Kernel KERNEL = Kernel.select();
+
+  ///
+  /// 単語数
   ///
-  private final double[][] vectors;
+  private final int size;
+
+  ///
+  /// 単語ベクトルの次元数
+  ///
+  private final int dimension;
+
+  ///
+  /// Word vectors (単語 i のベクトルは input[i*dimension..(i+1)*dimension))
+  ///
+  private final float[] input;
+
+  ///
+  /// Context vectors (コンテキストとして現れたときのベクトル、並びは input と同じ)
+  ///
+  private final float[] output;
 
   ///
   /// Constructor
@@ -14,14 +53,18 @@ final class Word2Vec {
   /// @param n 次元数
   ///
   Word2Vec(int v, int n) {
-    vectors = new double[v][n];
+    if ((long) v * n > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("too large: " + v + " x " + n);
+    }
+    size      = v;
+    dimension = n;
+    input     = new float[v * n];
+    output    = new float[v * n]; // コンテキストのベクトルは 0 で初期化
 
     // 標準生起分布から初期値をサンプリング
     Random engine = new Random();
-    for (int i = 0; i < v; ++i) {
-      for (int j = 0; j < n; ++j) {
-        vectors[i][j] = engine.nextGaussian();
-      }
+    for (int i = 0, length = v * n; i < length; ++i) {
+      input[i] = (float) engine.nextGaussian();
     }
   }
 
@@ -36,68 +79,630 @@ final class Word2Vec {
   }
 
   ///
-  /// Compute a inner product between two vectors.
+  /// シグモイド関数の表を引く範囲 [-MAX_EXP, MAX_EXP] (これより外側は飽和しているとみなす)
+  ///
+  private static final double MAX_EXP = 6.0;
+
   ///
-  /// @param w a word vector
-  /// @param c a word vector related w's context
-  /// @return w^T c
+  /// シグモイド関数の表の大きさ
   ///
-  private static double dot(final double[] w, final double[] c) {
-    assert w.length == c.length;
+  private static final int SIGMOID_TABLE_SIZE = 1000;
 
-    double retval = 0.0;
-    for (int i = 0, length = w.length; i < length; ++i) {
-      retval += w[i] * c[i];
+  ///
+  /// シグモイド関数の表 (i 番目は logistic((2i/SIGMOID_TABLE_SIZE - 1) * MAX_EXP))
+  ///
+  private static final float[] SIGMOID_TABLE = new float[SIGMOID_TABLE_SIZE + 1];
+  static {
+    for (int i = 0; i <= SIGMOID_TABLE_SIZE; ++i) {
+      SIGMOID_TABLE[i] = (float) logistic((2.0 * i / SIGMOID_TABLE_SIZE - 1.0) * MAX_EXP);
     }
-    return retval;
   }
 
   ///
-  /// Compute daxpby.
+  /// システムプロパティ sigmoid に exact を指定したら表を使わずに Math.exp で計算する
+  ///
+  private static final boolean EXACT_SIGMOID = "exact".equals(System.getProperty("sigmoid"));
+
   ///
-  /// @param a a scalar value
-  /// @param x a real vector
-  /// @param b a scalar value
-  /// @param y a real vector
+  /// 1 つのペアで単語ベクトルを更新する.
   ///
-  /// @return y = a * x + b * y.
+  /// argmax log[logistic(t.dot(w,c))] の勾配方向に w と c を動かす.
   ///
-  private static void daxpby(final double a, final double[] x, final double b, final double[] y) {
-    assert x.length == y.length;
+  /// @param w     単語 ID
+  /// @param c     コンテキスト単語 ID
+  /// @param t     c が w のコンテキスト内に存在するなら 1、そうでないなら -1
+  /// @param alpha 学習率
+  /// @param beta  減衰率 (1 - alpha * lambda)
+  ///
+  private void update(final int w, final int c, final double t, final double alpha, final double beta) {
+    final int x = w * dimension; //         単語のベクトルの位置
+    final int y = c * dimension; // コンテキスト単語のベクトルの位置
+
+    final double z = t * KERNEL.dot(input, x, output, y, dimension);
 
-    for (int i = 0, length = x.length; i < length; ++i) {
-      y[i] = a * x[i] + b * y[i];
+    final double g;
+    if (EXACT_SIGMOID) {
+      g = 1.0 - logistic(z);
+    } else if (z >= MAX_EXP) {
+      return; // 1 - logistic(z) はほぼ 0 なので更新しない
+    } else if (z <= -MAX_EXP) {
+      g = 1.0;
+    } else {
+      g = 1.0 - SIGMOID_TABLE[(int) ((z + MAX_EXP) * (SIGMOID_TABLE_SIZE / MAX_EXP / 2))];
     }
+
+    final float gamma = (float) (alpha * t * g);
+    KERNEL.update(gamma, (float) beta, input, x, output, y, dimension);
   }
 
   ///
-  /// 正例の c は w の前後 d の範囲にある単語を使い、負例のペアは p(w) p(c)^2/3 の重み付きサンプリングで正例数の K 倍ほど選択する.
+  /// 正例の c は w の前後 d の範囲にある単語を使い、負例のペアは p(c)^3/4 の重み付きサンプリングで正例数の K 倍ほど選択する.
   ///
   /// @param epocs    学習の反復回数
   /// @param alpha    学習率
-  /// @param lambda   1-正則化係数
+  /// @param lambda   正則化係数
   /// @param features 学習するペア
   ///
   public void learn(final int epocs, final double alpha, final double lambda, final int[][] features) {
-    final int length = vectors[0].length;  // 単語ベクトルの次元
-    final double[] v = new double[length]; // テンポラリの領域
-
-    final double beta = alpha * lambda;
+    final double beta = 1.0 - alpha * lambda;
     for (int epoc = 1; epoc <= epocs; ++epoc) {
       for (int[] feature : features) {
-        final double[] w = vectors[feature[0]]; //         単語のベクトル
-        final double[] c = vectors[feature[1]]; // コンテキスト単語のベクトル
-        final double   t =         feature[2] ; // c が w のコンテキスト内に存在するなら 1、そうでないなら -1
+        update(feature[0], feature[1], feature[2], alpha, beta);
+      }
+    }
+  }
+
+  ///
+  /// コーパスから窓内の正例と負例をその場で作りながら学習する (ペアの配列は作らない).
+  ///
+  /// @param corpus   学習するコーパス
+  /// @param window   窓の大きさ d (実際の窓は 1..d から一様に選ぶ)
+  /// @param negative 正例 1 つあたりの負例の数 K
+  /// @param epocs    学習の反復回数
+  /// @param alpha    学習率
+  /// @param lambda   正則化係数
+  ///
+  public void learn(final Corpus corpus, final int window, final int negative,
+                    final int epocs, final double alpha, final double lambda) {
+    learn(corpus, window, negative, epocs, alpha, lambda, 1);
+  }
+
+  ///
+  /// Hogwild! 方式でロックをかけずに複数スレッドで学習する.
+  ///
+  /// 文を numThreads 個に分割して、スレッドごとに乱数生成器を持たせる.
+  /// 単語ベクトルは全スレッドで共有し、書き込みの衝突は気にしない.
+  /// 学習率はスレッドごとに処理した単語数に応じて alpha から線形に減衰させる.
+  ///
+  /// @param numThreads スレッド数
+  ///
+  public void learn(final Corpus corpus, final int window, final int negative,
+                    final int epocs, final double alpha, final double lambda, final int numThreads) {
+    learn(corpus, window, negative, 0, epocs, alpha, lambda, numThreads);
+  }
+
+  ///
+  /// 高頻度語を間引きながら学習する.
+  ///
+  /// 出現頻度 f の単語を確率 (sqrt(f/sample) + 1) * sample/f で残す (Mikolov et al.).
+  /// 間引いた単語は窓を作る前に取り除くので、実際の窓はその分だけ広がる.
+  ///
+  /// @param sample 間引きの閾値 (0 なら間引かない、1e-3 〜 1e-5 くらい)
+  ///
+  /// negative が 0 なら負例を使わずに階層的ソフトマックスで学習する.
+  /// このときコンテキスト単語のベクトル (output) の行はハフマン木の内部ノードのベクトルとして使う.
+  ///
+  public void learn(final Corpus corpus, final int window, final int negative, final double sample,
+                    final int epocs, final double alpha, final double lambda, final int numThreads) {
+    final AliasTable  noise = (negative > 0) ? new AliasTable (corpus.vocabulary.counts, 0.75) : null;
+    final HuffmanTree tree  = (negative > 0) ? null : new HuffmanTree(corpus.vocabulary.counts);
+    final float[]     keep  = keepProbabilities(corpus, sample);
+
+    final long start = System.nanoTime();
+    final Thread[] threads = new Thread[numThreads];
+    for (int t = 0; t < numThreads; ++t) {
+      final int first = (int) ((long) corpus.size() *  t      / numThreads);
+      final int last  = (int) ((long) corpus.size() * (t + 1) / numThreads);
+      final long seed = t;
+      threads[t] = new Thread(() -> learn(corpus, first, last, window, negative, keep, epocs, alpha, lambda, noise, tree, new Random(seed)));
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    final double seconds = (System.nanoTime() - start) * 1e-9;
+    System.err.printf("%.0f words/sec%n", (double) corpus.tokens.length * epocs / seconds);
+  }
+
+  ///
+  /// 単語ごとの残す確率 (sample が 0 なら null).
+  ///
+  private static float[] keepProbabilities(final Corpus corpus, final double sample) {
+    if (sample <= 0) {
+      return null;
+    }
+    final long[] counts = corpus.vocabulary.counts;
+    final double threshold = sample * corpus.tokens.length;
+    final float[] keep = new float[counts.length];
+    for (int i = 0, size = counts.length; i < size; ++i) {
+      keep[i] = (float) Math.min(1.0, (Math.sqrt(counts[i] / threshold) + 1) * threshold / counts[i]);
+    }
+    return keep;
+  }
+
+  ///
+  /// 文 first..last-1 を学習する (1 スレッドぶん).
+  ///
+  private void learn(final Corpus corpus, final int first, final int last, final int window, final int negative,
+                     final float[] keep, final int epocs, final double alpha, final double lambda,
+                     final AliasTable noise, final HuffmanTree tree, final Random engine) {
+    final long numWords = (long) epocs * (corpus.offsets[last] - corpus.offsets[first]);
+    long processed = 0;
+    int[] sentence = new int[64]; // 間引いたあとの文
+    for (int epoc = 1; epoc <= epocs; ++epoc) {
+      for (int s = first; s < last; ++s) {
+        final int begin = corpus.offsets[s  ];
+        final int end   = corpus.offsets[s+1];
+
+        // 学習率を線形に減衰させる (文ごとに更新すれば十分)
+        final double eta  = alpha * Math.max(1.0 - (double) processed / numWords, 1e-4);
+        final double beta = 1.0 - eta * lambda;
+        processed += end - begin;
+
+        if (sentence.length < end - begin) {
+          sentence = new int[end - begin];
+        }
+        int length = 0;
+        for (int i = begin; i < end; ++i) {
+          final int w = corpus.tokens[i];
+          if ((keep == null) || (engine.nextFloat() < keep[w])) {
+            sentence[length++] = w;
+          }
+        }
+
+        for (int i = 0; i < length; ++i) {
+          final int w = sentence[i];
+          final int d = 1 + engine.nextInt(window);
+          for (int j = Math.max(0, i - d), limit = Math.min(length - 1, i + d); j <= limit; ++j) {
+            if (j == i) {
+              continue;
+            }
+            final int c = sentence[j];
+            if (tree != null) {
+              // c に至るハフマン木の経路上の内部ノードで左右の二値分類を学習する
+              for (int p = tree.offsets[c], pathEnd = tree.offsets[c+1]; p < pathEnd; ++p) {
+                update(w, tree.points[p], tree.codes[p] ? -1 : +1, eta, beta);
+              }
+              continue;
+            }
+            update(w, c, +1, eta, beta);
+            for (int k = 0; k < negative; ++k) {
+              final int n = noise.sample(engine);
+              if (n != c) {
+                update(w, n, -1, eta, beta);
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  ///
+  /// 単語と ID の対応.
+  ///
+  static final class Vocabulary {
+    private final Map<String, Integer> ids   = new HashMap<>();
+    private final List<String>         words = new ArrayList<>();
+    private long[] counts = new long[16];
+
+    ///
+    /// 単語の ID を返す (無ければ登録する).
+    ///
+    int add(final String word) {
+      Integer id = ids.get(word);
+      if (id == null) {
+        ids.put(word, id = words.size());
+        words.add(word);
+        if (id == counts.length) {
+          counts = Arrays.copyOf(counts, 2 * id);
+        }
+      }
+      ++counts[id];
+      return id;
+    }
+
+    int size() {
+      return words.size();
+    }
+
+    String word(final int id) {
+      return words.get(id);
+    }
+
+    long count(final int id) {
+      return counts[id];
+    }
+
+    ///
+    /// 出現回数が minCount 未満の単語を除いて、出現回数の多い順に ID を振り直す.
+    ///
+    /// @return 古い ID から新しい ID への対応 (除いた単語は -1)
+    ///
+    private int[] prune(final int minCount, final Vocabulary pruned) {
+      final int size = size();
+      final Integer[] order = new Integer[size];
+      for (int i = 0; i < size; ++i) {
+        order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> Long.compare(counts[b], counts[a]));
 
-        // argmax log[logistic(t.dot(w,c))] + log[logistic(t.dot(w,c))] を求める
-        final double gamma = alpha * t * (1.0 - logistic(dot(w, c)));
-        System.arraycopy(w, 0, v, 0, length);
-        Word2Vec.daxpby(gamma, c, beta, w);
-        Word2Vec.daxpby(gamma, v, beta, c);
+      final int[] remap = new int[size];
+      Arrays.fill(remap, -1);
+      for (Integer id : order) {
+        if (counts[id] < minCount) {
+          break;
+        }
+        final int newId = pruned.words.size();
+        pruned.ids.put(words.get(id), newId);
+        pruned.words.add(words.get(id));
+        remap[id] = newId;
+      }
+      pruned.counts = new long[pruned.words.size()];
+      for (int i = 0; i < size; ++i) {
+        if (remap[i] >= 0) {
+          pruned.counts[remap[i]] = counts[i];
+        }
       }
+      return remap;
     }
   }
 
-  public static void main(String[] args) {
+  ///
+  /// 1 行 1 文のコーパス (全文の単語 ID を 1 本の配列に詰めて持つ).
+  ///
+  static final class Corpus {
+    private final Vocabulary vocabulary;
+    private final int[] tokens;  ///< 全文の単語 ID
+    private final int[] offsets; ///< 文 s は tokens[offsets[s]..offsets[s+1])
+
+    private Corpus(final Vocabulary vocabulary, final int[] tokens, final int[] offsets) {
+      this.vocabulary = vocabulary;
+      this.tokens     = tokens;
+      this.offsets    = offsets;
+    }
+
+    int size() {
+      return offsets.length - 1;
+    }
+
+    Vocabulary vocabulary() {
+      return vocabulary;
+    }
+
+    int numTokens() {
+      return tokens.length;
+    }
+
+    ///
+    /// 出現回数が minCount 未満の単語を取り除いて、ID を出現回数の多い順に詰め直したコーパスを返す.
+    ///
+    Corpus prune(final int minCount) {
+      final Vocabulary pruned = new Vocabulary();
+      final int[] remap = vocabulary.prune(minCount, pruned);
+
+      final int[] newTokens  = new int[tokens.length];
+      final int[] newOffsets = new int[offsets.length];
+      int numTokens    = 0;
+      int numSentences = 0;
+      for (int s = 0, size = size(); s < size; ++s) {
+        for (int i = offsets[s], end = offsets[s+1]; i < end; ++i) {
+          final int id = remap[tokens[i]];
+          if (id >= 0) {
+            newTokens[numTokens++] = id;
+          }
+        }
+        if (numTokens > newOffsets[numSentences]) {
+          newOffsets[++numSentences] = numTokens;
+        }
+      }
+      return new Corpus(pruned,
+        Arrays.copyOf(newTokens, numTokens),
+        Arrays.copyOf(newOffsets, numSentences + 1));
+    }
+
+    ///
+    /// 空白区切りの単語が 1 行に 1 文並んだファイルを読み込む.
+    ///
+    static Corpus read(final File file) throws IOException {
+      final Builder builder = new Builder();
+      try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+        for (String line; (line = in.readLine()) != null;) {
+          line = line.trim();
+          if (line.isEmpty()) {
+            continue;
+          }
+          for (String word : line.split("\\s+")) {
+            builder.add(word);
+          }
+          builder.endSentence();
+        }
+      }
+      return builder.build();
+    }
+
+    ///
+    /// 単語を 1 つずつ追加してコーパスを作る.
+    ///
+    static final class Builder {
+      private final Vocabulary vocabulary = new Vocabulary();
+
+      private int[] tokens  = new int[1024];
+      private int[] offsets = new int[1024];
+      private int numTokens    = 0;
+      private int numSentences = 0;
+
+      Vocabulary vocabulary() {
+        return vocabulary;
+      }
+
+      ///
+      /// 単語を追加する.
+      ///
+      /// @return 単語の ID
+      ///
+      int add(final String word) {
+        final int id = vocabulary.add(word);
+        append(id);
+        return id;
+      }
+
+      ///
+      /// 登録済みの単語を ID で追加する (文字列を作らずに済む).
+      ///
+      void add(final int id) {
+        ++vocabulary.counts[id];
+        append(id);
+      }
+
+      private void append(final int id) {
+        if (numTokens == tokens.length) {
+          tokens = Arrays.copyOf(tokens, 2 * numTokens);
+        }
+        tokens[numTokens++] = id;
+      }
+
+      ///
+      /// 文を区切る (空の文は作らない).
+      ///
+      void endSentence() {
+        if (numTokens == offsets[numSentences]) {
+          return;
+        }
+        if (numSentences + 1 == offsets.length) {
+          offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+        }
+        offsets[++numSentences] = numTokens;
+      }
+
+      Corpus build() {
+        endSentence();
+        vocabulary.counts = Arrays.copyOf(vocabulary.counts, vocabulary.size());
+        return new Corpus(vocabulary,
+          Arrays.copyOf(tokens, numTokens),
+          Arrays.copyOf(offsets, numSentences + 1));
+      }
+    }
+  }
+
+  ///
+  /// Walker のエイリアス法で離散分布から O(1) でサンプリングする.
+  ///
+  static final class AliasTable {
+    private final double[] probability;
+    private final int[]    alias;
+
+    ///
+    /// @param counts 出現回数
+    /// @param power  出現回数を何乗した重みでサンプリングするか
+    ///
+    AliasTable(final long[] counts, final double power) {
+      final int size = counts.length;
+      probability = new double[size];
+      alias       = new int   [size];
+
+      double sum = 0;
+      for (long count : counts) {
+        sum += Math.pow(count, power);
+      }
+
+      // 平均が 1 になるように正規化して、1 未満と 1 以上に振り分ける
+      final double[] p = new double[size];
+      final int[] small = new int[size];
+      final int[] large = new int[size];
+      int numSmall = 0;
+      int numLarge = 0;
+      for (int i = 0; i < size; ++i) {
+        p[i] = Math.pow(counts[i], power) * size / sum;
+        if (p[i] < 1.0) {
+          small[numSmall++] = i;
+        } else {
+          large[numLarge++] = i;
+        }
+      }
+
+      while ((numSmall > 0) && (numLarge > 0)) {
+        final int s = small[--numSmall];
+        final int l = large[--numLarge];
+        probability[s] = p[s];
+        alias      [s] = l;
+        p[l] -= 1.0 - p[s];
+        if (p[l] < 1.0) {
+          small[numSmall++] = l;
+        } else {
+          large[numLarge++] = l;
+        }
+      }
+      while (numLarge > 0) {
+        probability[large[--numLarge]] = 1.0;
+      }
+      while (numSmall > 0) {
+        probability[small[--numSmall]] = 1.0; // 丸め誤差で残ったもの
+      }
+    }
+
+    int sample(final Random engine) {
+      final int i = engine.nextInt(probability.length);
+      return (engine.nextDouble() < probability[i]) ? i : alias[i];
+    }
+  }
+
+  ///
+  /// 階層的ソフトマックスのための出現回数によるハフマン木.
+  ///
+  /// 内部ノードは V-1 個で 0..V-2 の番号を振る (根が V-2).
+  /// 単語 c の根からの経路は points[offsets[c]..offsets[c+1]) の内部ノードと、
+  /// 各ノードで右 (true) と左 (false) のどちらに進むかの codes で表す.
+  ///
+  static final class HuffmanTree {
+    private final int[]     offsets;
+    private final int[]     points;
+    private final boolean[] codes;
+
+    HuffmanTree(final long[] counts) {
+      final int size = counts.length;
+
+      // 葉を出現回数の昇順に並べて、葉と内部ノードの 2 つのキューから小さいものを 2 つずつ取り出してまとめる
+      final Integer[] order = new Integer[size];
+      for (int i = 0; i < size; ++i) {
+        order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> Long.compare(counts[a], counts[b]));
+
+      final long[]    weight = new long   [Math.max(2 * size - 1, 1)];
+      final int[]     parent = new int    [weight.length];
+      final boolean[] binary = new boolean[weight.length];
+      for (int i = 0; i < size; ++i) {
+        weight[i] = counts[i];
+      }
+      int leaf = 0;    // 次に取り出す葉 (order の位置)
+      int inner = size; // 次に取り出す内部ノード
+      for (int node = size; node < 2 * size - 1; ++node) {
+        final int[] pair = new int[2];
+        for (int k = 0; k < 2; ++k) {
+          if ((leaf < size) && ((inner >= node) || (weight[order[leaf]] <= weight[inner]))) {
+            pair[k] = order[leaf++];
+          } else {
+            pair[k] = inner++;
+          }
+        }
+        weight[node] = weight[pair[0]] + weight[pair[1]];
+        parent[pair[0]] = node;
+        parent[pair[1]] = node;
+        binary[pair[1]] = true;
+      }
+
+      // 葉から根までたどって、根からの順に並べる
+      offsets = new int[size + 1];
+      for (int c = 0; c < size; ++c) {
+        int depth = 0;
+        for (int node = c; node != 2 * size - 2; node = parent[node]) {
+          ++depth;
+        }
+        offsets[c + 1] = offsets[c] + ((size > 1) ? depth : 0);
+      }
+      points = new int    [offsets[size]];
+      codes  = new boolean[offsets[size]];
+      for (int c = 0; (c < size) && (size > 1); ++c) {
+        int p = offsets[c + 1];
+        for (int node = c; node != 2 * size - 2; node = parent[node]) {
+          --p;
+          points[p] = parent[node] - size;
+          codes [p] = binary[node];
+        }
+      }
+    }
+  }
+
+  ///
+  /// 単語ベクトルを単語と組にして返す (配列はコピーしない).
+  ///
+  Embeddings embeddings(final Vocabulary vocabulary) {
+    final List<String> words = new ArrayList<>(size);
+    for (int i = 0; i < size; ++i) {
+      words.add(vocabulary.word(i));
+    }
+    return new Embeddings(words, input, dimension);
+  }
+
+  public static void main(String[] args) throws IOException {
+    int    threads  = 1;
+    int    minCount = 1;
+    double sample   = 0;
+    File   output   = null;
+
+    // オプション
+    int argi = 0;
+    for (; (argi + 1 < args.length) && args[argi].startsWith("-"); argi += 2) {
+      switch (args[argi]) {
+      case "-threads":
+        threads = Integer.parseInt(args[argi + 1]);
+        break;
+      case "-min-count":
+        minCount = Integer.parseInt(args[argi + 1]);
+        break;
+      case "-sample":
+        sample = Double.parseDouble(args[argi + 1]);
+        break;
+      case "-output":
+        output = new File(args[argi + 1]);
+        break;
+      default:
+        argi = args.length; // 不明なオプション
+        break;
+      }
+    }
+    if (args.length - argi != 7) {
+      System.err.println("Usage: java Word2Vec [-threads n] [-min-count n] [-sample t] [-output file] corpus-file dimension window negative epocs alpha lambda");
+      return;
+    }
+
+    final File   file      = new File(args[argi]);
+    final int    dimension = Integer.parseInt   (args[argi + 1]);
+    final int    window    = Integer.parseInt   (args[argi + 2]);
+    final int    negative  = Integer.parseInt   (args[argi + 3]);
+    final int    epocs     = Integer.parseInt   (args[argi + 4]);
+    final double alpha     = Double .parseDouble(args[argi + 5]);
+    final double lambda    = Double .parseDouble(args[argi + 6]);
+
+    final Corpus corpus = Corpus.read(file).prune(minCount);
+
+    System.err.printf("V            = %d%n", corpus.vocabulary().size());
+    System.err.printf("sentences    = %d%n", corpus.size());
+    System.err.printf("tokens       = %d%n", corpus.numTokens());
+    System.err.printf("dimension    = %d%n", dimension);
+    System.err.printf("window       = %d%n", window);
+    System.err.printf("negative     = %d%n", negative);
+    System.err.printf("epocs        = %d%n", epocs);
+    System.err.printf("alpha        = %f%n", alpha);
+    System.err.printf("lambda       = %f%n", lambda);
+    System.err.printf("threads      = %d%n", threads);
+    System.err.printf("min-count    = %d%n", minCount);
+    System.err.printf("sample       = %g%n", sample);
+    System.err.printf("kernel       = %s%n", KERNEL);
+    System.err.printf("sigmoid      = %s%n", EXACT_SIGMOID ? "exact" : "table");
+
+    final Word2Vec word2vec = new Word2Vec(corpus.vocabulary().size(), dimension);
+    word2vec.learn(corpus, window, negative, sample, epocs, alpha, lambda, threads);
+    if (output != null) {
+      word2vec.embeddings(corpus.vocabulary()).write(output);
+    } else {
+      word2vec.embeddings(corpus.vocabulary()).writeText(System.out);
+    }
   }
 }
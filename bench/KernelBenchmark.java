@@ -0,0 +1,81 @@
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+///
+/// Kernel.Scalar と VectorKernel の JMH ベンチマーク.
+///
+///   Build: javac --add-modules jdk.incubator.vector -cp jmh-core.jar:jmh-generator-annprocess.jar -d out ../Kernel.java ../vector/VectorKernel.java KernelBenchmark.java
+///   Run:   java --add-modules jdk.incubator.vector -cp jmh-core.jar:out org.openjdk.jmh.Main KernelBenchmark
+///
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class KernelBenchmark {
+
+  @Param({"100", "300"})
+  private int dimension;
+
+  @Param({"scalar", "vector"})
+  private String kernel;
+
+  private Kernel impl;
+
+  // 単語ベクトルの行列から 2 行を使う (word2vec の更新と同じアクセス)
+  private float[] input;
+  private float[] output;
+  private int x;
+  private int y;
+
+  @Setup
+  public void setup() {
+    impl = "scalar".equals(kernel) ? new Kernel.Scalar() : new VectorKernel();
+
+    final Random engine = new Random(0);
+    input  = new float[16 * dimension];
+    output = new float[16 * dimension];
+    for (int i = 0; i < input.length; ++i) {
+      input [i] = (float) engine.nextGaussian();
+      output[i] = (float) engine.nextGaussian();
+    }
+    x = 3 * dimension;
+    y = 7 * dimension;
+  }
+
+  @Benchmark
+  public float dot() {
+    return impl.dot(input, x, output, y, dimension);
+  }
+
+  @Benchmark
+  public void saxpby() {
+    impl.saxpby(1e-3f, output, y, 0.999f, input, x, dimension);
+  }
+
+  ///
+  /// update は 2 行をその場で更新するので、同じ係数で繰り返すと値が発散して Inf/NaN の演算を測ってしまう.
+  /// 呼び出しごとの @Setup(Level.Invocation) は数十 ns の計測には使えないので、a の符号を交互に変える.
+  /// b * b - a * a = 1 なら 2 回の更新で元の値に戻る (5/4 と 3/4 は float で割り切れる).
+  ///
+  private float a = 0.75f;
+
+  @Benchmark
+  public void update() {
+    a = -a;
+    impl.update(a, 1.25f, input, x, output, y, dimension);
+  }
+}
@@ -0,0 +1,241 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * コーパスの統計 (語彙、単語の出現回数、文書の長さのヒストグラム)
+ *
+ * CsaUtility.encode の ID は疎 (0 以上 CsaUtility.NUM_MOVES 未満) なので、出現した ID だけに
+ * 0 から詰めた番号 (密な ID) を振る. モデルは密な ID で語彙数ぶんの行列だけを確保する.
+ * 密な ID は疎な ID の小さい順.
+ *
+ *   Usage: java -cp . CorpusStatistics corpus-file
+ */
+final class CorpusStatistics {
+
+  /**
+   * 密な ID から疎な ID
+   */
+  private final int[] words;
+
+  /**
+   * 疎な ID から密な ID (出現しなかった ID は -1)
+   */
+  private final int[] ids;
+
+  /**
+   * 密な ID ごとの出現回数
+   */
+  private final long[] frequencies;
+
+  /**
+   * 長さ n の文書の数
+   */
+  private final long[] lengths;
+
+  private final long numTokens;
+  private final int numDocuments;
+
+  private CorpusStatistics(final Counter counter) {
+    int V = 0;
+    for (long count : counter.counts) {
+      if (count > 0) {
+        ++V;
+      }
+    }
+    this.words       = new int[V];
+    this.frequencies = new long[V];
+    this.ids         = new int[CsaUtility.NUM_MOVES];
+    Arrays.fill(ids, -1);
+    for (int v = 0, dense = 0; v < CsaUtility.NUM_MOVES; ++v) {
+      if (counter.counts[v] > 0) {
+        words      [dense] = v;
+        frequencies[dense] = counter.counts[v];
+        ids[v] = dense++;
+      }
+    }
+    this.lengths      = Arrays.copyOf(counter.lengths, counter.maxLength + 1);
+    this.numTokens    = counter.numTokens;
+    this.numDocuments = counter.numDocuments;
+  }
+
+  /**
+   * 出現回数を数える (1 つのスレッドで使う)
+   */
+  static final class Counter {
+    private final long[] counts = new long[CsaUtility.NUM_MOVES];
+    private long[] lengths = new long[256];
+    private int maxLength = 0;
+    private long numTokens = 0;
+    private int numDocuments = 0;
+
+    /**
+     * 文書 doc[0..n) を数える
+     */
+    void add(final int[] doc, final int n) {
+      for (int i = 0; i < n; ++i) {
+        final int v = doc[i];
+        if ((v < 0) || (v >= CsaUtility.NUM_MOVES)) {
+          throw new IllegalArgumentException("not a move id: " + v);
+        }
+        ++counts[v];
+      }
+      if (n >= lengths.length) {
+        lengths = Arrays.copyOf(lengths, Math.max(2 * lengths.length, n + 1));
+      }
+      ++lengths[n];
+      maxLength = Math.max(maxLength, n);
+      numTokens += n;
+      ++numDocuments;
+    }
+
+    void merge(final Counter other) {
+      for (int v = 0; v < CsaUtility.NUM_MOVES; ++v) {
+        counts[v] += other.counts[v];
+      }
+      if (other.maxLength >= lengths.length) {
+        lengths = Arrays.copyOf(lengths, other.maxLength + 1);
+      }
+      for (int n = 0; n <= other.maxLength; ++n) {
+        lengths[n] += other.lengths[n];
+      }
+      maxLength     = Math.max(maxLength, other.maxLength);
+      numTokens    += other.numTokens;
+      numDocuments += other.numDocuments;
+    }
+
+    CorpusStatistics build() {
+      return new CorpusStatistics(this);
+    }
+  }
+
+  /**
+   * 文書を区間に分けて並列に数える
+   */
+  static CorpusStatistics of(final int[][] w) {
+    final int M = w.length;
+    final int numChunks = Math.max(1, Math.min(M, Runtime.getRuntime().availableProcessors()));
+    final Counter[] counters = new Counter[numChunks];
+    IntStream.range(0, numChunks).parallel().forEach(c -> {
+      final Counter counter = counters[c] = new Counter();
+      for (int m = (int) ((long) M * c / numChunks), end = (int) ((long) M * (c + 1) / numChunks); m < end; ++m) {
+        counter.add(w[m], w[m].length);
+      }
+    });
+    for (int c = 1; c < numChunks; ++c) {
+      counters[0].merge(counters[c]);
+    }
+    return counters[0].build();
+  }
+
+  /**
+   * @return 語彙数
+   */
+  int size() {
+    return words.length;
+  }
+
+  long numTokens() {
+    return numTokens;
+  }
+
+  int numDocuments() {
+    return numDocuments;
+  }
+
+  /**
+   * @return 密な ID v の疎な ID
+   */
+  int word(final int v) {
+    return words[v];
+  }
+
+  /**
+   * @return 密な ID から疎な ID への対応 (LDAModel に保存する)
+   */
+  int[] words() {
+    return words.clone();
+  }
+
+  /**
+   * @return 疎な ID の密な ID (語彙に無ければ -1)
+   */
+  int id(final int word) {
+    return ((word >= 0) && (word < ids.length)) ? ids[word] : -1;
+  }
+
+  long frequency(final int v) {
+    return frequencies[v];
+  }
+
+  /**
+   * @return 長さ n の文書の数
+   */
+  long documents(final int n) {
+    return (n < lengths.length) ? lengths[n] : 0;
+  }
+
+  /**
+   * @return 密な ID v の表記
+   */
+  String label(final int v) {
+    return CsaUtility.convertToString(words[v]);
+  }
+
+  /**
+   * 文書の単語を密な ID に置き換える (w をそのまま書き換える)
+   */
+  int[][] remap(final int[][] w) {
+    IntStream.range(0, w.length).parallel().forEach(m -> remap(w[m], w[m].length));
+    return w;
+  }
+
+  /**
+   * doc[0..n) を密な ID に置き換える
+   */
+  void remap(final int[] doc, final int n) {
+    for (int i = 0; i < n; ++i) {
+      doc[i] = ids[doc[i]];
+    }
+  }
+
+  void print(final PrintStream out) {
+    out.printf("V            = %d%n", size());
+    out.printf("M            = %d%n", numDocuments);
+    out.printf("tokens       = %d%n", numTokens);
+
+    // 出現回数の多い単語
+    final Integer[] order = new Integer[size()];
+    for (int v = 0; v < order.length; ++v) {
+      order[v] = v;
+    }
+    Arrays.sort(order, (a, b) -> Long.compare(frequencies[b], frequencies[a]));
+    out.print("top          =");
+    for (int i = 0; i < Math.min(20, order.length); ++i) {
+      out.printf(" %s(%d)", label(order[i]).trim(), frequencies[order[i]]);
+    }
+    out.println();
+
+    // 長さのヒストグラム (10 手ごと)
+    for (int n = 0; n < lengths.length; n += 10) {
+      long count = 0;
+      for (int i = n; i < Math.min(n + 10, lengths.length); ++i) {
+        count += lengths[i];
+      }
+      if (count > 0) {
+        out.printf("length %3d-%3d = %d%n", n, n + 9, count);
+      }
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      System.err.println("Usage: java CorpusStatistics corpus-file");
+      return;
+    }
+    of(MoveCorpus.read(new File(args[0]))).print(System.out);
+  }
+}
@@ -0,0 +1,186 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * アーカイブ (.zip, .tar.gz, .tgz, .tar) の中の csa ファイルを展開せずに読む
+ *
+ * zip は java.util.zip で、tar は 512 byte のヘッダを自前で読む (ustar の prefix、GNU の長い名前、pax の path に対応).
+ * 7z は JDK に実装が無いので扱わない.
+ */
+final class CsaArchive {
+
+  private static final int BLOCK_SIZE = 512;
+
+  interface EntryConsumer {
+    void accept(String name, byte[] data) throws IOException;
+  }
+
+  /**
+   * @return 読めるアーカイブなら true
+   */
+  static boolean isArchive(Path file) {
+    String name = file.getFileName().toString();
+    return name.endsWith(".zip") || name.endsWith(".tar.gz") || name.endsWith(".tgz") || name.endsWith(".tar");
+  }
+
+  /**
+   * アーカイブの中の .csa を 1 つずつ consumer に渡す
+   */
+  static void forEach(Path archive, EntryConsumer consumer) throws IOException {
+    String name = archive.getFileName().toString();
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(archive), 1 << 16)) {
+      if (name.endsWith(".zip")) {
+        readZip(in, consumer);
+      } else if (name.endsWith(".tar")) {
+        readTar(in, consumer);
+      } else {
+        readTar(new GZIPInputStream(in, 1 << 16), consumer);
+      }
+    }
+  }
+
+  private static void readZip(InputStream stream, EntryConsumer consumer) throws IOException {
+    ZipInputStream in = new ZipInputStream(stream);
+    for (ZipEntry entry; (entry = in.getNextEntry()) != null;) {
+      if (!entry.isDirectory() && entry.getName().endsWith(".csa")) {
+        consumer.accept(entry.getName(), in.readAllBytes());
+      }
+    }
+  }
+
+  private static void readTar(InputStream in, EntryConsumer consumer) throws IOException {
+    byte[] header = new byte[BLOCK_SIZE];
+    String longName = null; // GNU の 'L' か pax の path で指定された次のエントリの名前
+    while (readBlock(in, header)) {
+      if (isZero(header)) {
+        break; // 終端
+      }
+      String name = string(header, 0, 100);
+      String prefix = string(header, 345, 155);
+      if (!prefix.isEmpty() && "ustar".equals(string(header, 257, 5))) {
+        name = prefix + "/" + name;
+      }
+      long size = octal(header, 124, 12);
+      byte type = header[156];
+
+      if ((type == 'L') || (type == 'x')) {
+        byte[] data = readData(in, size);
+        longName = (type == 'L') ? string(data, 0, data.length) : paxPath(data, longName);
+        continue;
+      }
+      if (longName != null) {
+        name = longName;
+        longName = null;
+      }
+      if (((type == '0') || (type == 0)) && name.endsWith(".csa")) {
+        consumer.accept(name, readData(in, size));
+      } else {
+        skip(in, padded(size));
+      }
+    }
+  }
+
+  private static long padded(long size) {
+    return (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+  }
+
+  private static byte[] readData(InputStream in, long size) throws IOException {
+    if (size > Integer.MAX_VALUE - BLOCK_SIZE) {
+      throw new IOException("entry too large: " + size);
+    }
+    byte[] data = in.readNBytes((int) size);
+    if (data.length != size) {
+      throw new EOFException("truncated tar");
+    }
+    skip(in, padded(size) - size);
+    return data;
+  }
+
+  private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+    int n = in.readNBytes(block, 0, block.length);
+    if (n == 0) {
+      return false;
+    }
+    if (n != block.length) {
+      throw new EOFException("truncated tar");
+    }
+    return true;
+  }
+
+  private static void skip(InputStream in, long n) throws IOException {
+    while (n > 0) {
+      long skipped = in.skip(n);
+      if (skipped <= 0) {
+        if (in.read() < 0) {
+          throw new EOFException("truncated tar");
+        }
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+  }
+
+  private static boolean isZero(byte[] block) {
+    for (byte b : block) {
+      if (b != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // NUL で終わる文字列
+  private static String string(byte[] data, int offset, int length) {
+    int end = offset;
+    while ((end < offset + length) && (data[end] != 0)) {
+      ++end;
+    }
+    return new String(data, offset, end - offset, StandardCharsets.UTF_8);
+  }
+
+  private static long octal(byte[] data, int offset, int length) {
+    long value = 0;
+    for (int i = offset; i < offset + length; ++i) {
+      byte b = data[i];
+      if ((b >= '0') && (b <= '7')) {
+        value = value * 8 + (b - '0');
+      } else if ((b != ' ') || (value != 0)) {
+        break; // 先頭の空白だけ読み飛ばす
+      }
+    }
+    return value;
+  }
+
+  // pax 拡張ヘッダ ("長さ key=value\n" の並び、長さはバイト数) から path を取り出す
+  private static String paxPath(byte[] data, String defaultValue) {
+    for (int i = 0; i < data.length;) {
+      int space = i;
+      while ((space < data.length) && (data[space] != ' ')) {
+        ++space;
+      }
+      if (space >= data.length) {
+        break;
+      }
+      int length = Integer.parseInt(new String(data, i, space - i, StandardCharsets.US_ASCII));
+      if ((length <= space - i) || (i + length > data.length)) {
+        break;
+      }
+      String record = new String(data, space + 1, i + length - 1 - (space + 1), StandardCharsets.UTF_8);
+      if (record.startsWith("path=")) {
+        return record.substring(5);
+      }
+      i += length;
+    }
+    return defaultValue;
+  }
+}
@@ -1,37 +1,74 @@
 import java.io.IOException;
-import java.io.File;
-import java.io.FileReader;
+import java.io.InterruptedIOException;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.StringReader;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 
-import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
 import java.util.List;
 import java.util.HashSet;
+import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 ///
 /// csa 形式の棋譜から独立した手を 1 行ずつのテキストファイルに変換する
 ///
-///   Usage: java -cp . CsaConverter dir > corpus.txt
+///   Usage: java -cp . CsaConverter [-threads n] [-charset name] [-run-size n] [-tmp dir] [-binary file [-encoding u16|int32|varint]] [-dedup exact|n] dir > corpus.txt
+///          java -cp . CsaConverter [options] -manifest manifest.tsv -corpus corpus.txt dir
+///
+/// -threads に 2 以上を指定すると、その数のスレッドでファイルを並列に読み込んでパースする.
+/// ファイルは 1 度にまとめて読み込んでから -charset (既定は Shift_JIS) で文字列にする.
+/// 出力は整列するので、スレッド数によらず同じになる.
+/// 整列は ExternalSorter で行い、-run-size 局ごとに -tmp のディレクトリへ書き出してからマージする.
+/// -binary を指定すると、テキストの代わりに指し手 ID に変換した MoveCorpus を書き出す (順序はテキストと同じ).
+/// -manifest と -corpus を指定すると、manifest に無いか変わったファイルだけを変換して corpus (整列済みのテキスト) にマージし、
+/// manifest を更新する. -binary があれば、更新した corpus から MoveCorpus も書き出す.
+/// dir 以下の .zip, .tar.gz, .tgz, .tar の中の csa も展開せずに読む (アーカイブごとに並列、差分更新では読まない).
+/// -dedup exact で指し手が全て同じ棋譜を、-dedup n で最初の n 手が同じ棋譜を、最初の 1 局だけ残して取り除く.
+/// 通常は読み込んだ順 (ファイル、アーカイブの順) に、差分更新では整列した後の順に判定する.
+/// 差分更新では、同じ行を参照するファイルが 1 つでも残っていれば行を残し、取り除いた行と重複していた棋譜は読み直して戻す.
 ///
 final class CsaConverter {
 
-  // dir 以下の csa ファイルを列挙する
-  private static List<File> enumCsa(File dir, List<File> files) {
-    if (dir.isDirectory()) {
-      for (File file : dir.listFiles()) {
-        enumCsa(file, files);
-      }
+  // dir 以下の csa ファイルをパスの順に列挙する
+  private static List<Path> enumCsa(Path dir) throws IOException {
+    try (Stream<Path> stream = Files.walk(dir)) {
+      return stream
+        .filter(path -> path.getFileName().toString().endsWith(".csa"))
+        .filter(Files::isRegularFile)
+        .sorted()
+        .collect(Collectors.toList());
     }
-    if (dir.isFile()) {
-      if (dir.getName().endsWith(".csa")) {
-        files.add(dir);
-      }
-    }
-    return files;
   }
 
+  // dir 以下のアーカイブをパスの順に列挙する (dir がアーカイブならそれだけ)
+  private static List<Path> enumArchives(Path dir) throws IOException {
+    try (Stream<Path> stream = Files.walk(dir)) {
+      return stream
+        .filter(CsaArchive::isArchive)
+        .filter(Files::isRegularFile)
+        .sorted()
+        .collect(Collectors.toList());
+    }
+  }
 
   private static boolean skipHeader(BufferedReader in) throws IOException {
     String line;
@@ -46,6 +83,9 @@ final class CsaConverter {
   private static void readBody(BufferedReader in, List<String> list) throws IOException {
     String line;
     while ((line = in.readLine()) != null) {
+      if (line.isEmpty()) {
+        continue;
+      }
       switch (line.charAt(0)) {
       case '+':
       case '-':
@@ -68,72 +108,426 @@ final class CsaConverter {
     throw new IOException("invalid csa");
   }
 
-  public static void main(String[] args) {
-    List<File> files = enumCsa(new File(args[0]), new ArrayList<File>());
+  // 指し手を空白区切りの 1 行にする (手数が少なすぎる棋譜は null)
+  private static String toLine(List<String> list) {
+    if (list.size() <= 25) {
+      return null;
+    }
+    StringBuilder builder = new StringBuilder();
+    for (String te : list) {
+      builder.append(" ");
+      builder.append(te);
+    }
+    return builder.toString().trim();
+  }
+
+  // 変換の結果
+  private static final class Converted {
+    final String line; // 出力する行 (手数が少なすぎる棋譜は null)
+    final String hash; // ファイルの内容のハッシュ (求めなかったときは null)
+
+    Converted(String line, String hash) {
+      this.line = line;
+      this.hash = hash;
+    }
+  }
+
+  private interface Consumer {
+    void accept(Path file, Converted converted) throws IOException;
+  }
 
-    List<String> data = new ArrayList<>();
-    for (File file : files) {
-      try (BufferedReader in = new BufferedReader(new FileReader(file))) {
-        List<String> list = new ArrayList<>();
-        parse(in, list);
-        if (list.isEmpty()) {
+  // ファイルの内容をパースする
+  private static String convert(byte[] bytes, Charset charset) throws IOException {
+    String text = new String(bytes, charset);
+    List<String> list = new ArrayList<>();
+    parse(new BufferedReader(new StringReader(text)), list);
+    return toLine(list);
+  }
+
+  // ファイルを 1 度に読み込んでパースする
+  private static Converted convert(Path file, Charset charset, boolean hash) throws IOException {
+    byte[] bytes = Files.readAllBytes(file);
+    return new Converted(convert(bytes, charset), hash ? Manifest.hash(bytes) : null);
+  }
+
+  // 全てのファイルを変換してファイルの順に consumer に渡す (読めなかったファイルは標準エラーに出して飛ばす)
+  private static void convert(List<Path> files, Charset charset, int threads, boolean hash, Consumer consumer) throws IOException {
+    if (threads <= 1) {
+      for (Path file : files) {
+        Converted converted;
+        try {
+          converted = convert(file, charset, hash);
+        } catch (IOException e) {
+          System.err.println(file);
           continue;
         }
-        if (list.size() <= 25) {
+        consumer.accept(file, converted);
+      }
+      return;
+    }
+
+    // 結果を溜め込まないように、同時に投入するファイルは WINDOW 個までにする
+    final int WINDOW = 64 * threads;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      Deque<Future<Converted>> futures = new ArrayDeque<>(WINDOW);
+      for (int submitted = 0, done = 0, size = files.size(); done < size; ++done) {
+        for (; (submitted < size) && (submitted - done < WINDOW); ++submitted) {
+          Path file = files.get(submitted);
+          futures.add(executor.submit(() -> convert(file, charset, hash)));
+        }
+        Converted converted;
+        try {
+          converted = futures.poll().get();
+        } catch (ExecutionException e) {
+          System.err.println(files.get(done));
           continue;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException(e);
         }
-        StringBuilder builder = new StringBuilder();
-        for (String te : list) {
-          builder.append(" ");
-          builder.append(te);
+        consumer.accept(files.get(done), converted);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  // 全てのファイルを変換してファイルの順に sink に渡す
+  private static void convert(List<Path> files, Charset charset, int threads, ExternalSorter.Sink sink) throws IOException {
+    convert(files, charset, threads, false, (file, converted) -> {
+      if (converted.line != null) {
+        sink.accept(converted.line);
+      }
+    });
+  }
+
+  // アーカイブ 1 つぶんの変換した行を受け渡すキューの長さ
+  private static final int QUEUE_SIZE = 1024;
+
+  // アーカイブの終わりを表す行 (参照で比べる)
+  private static final String END_OF_ARCHIVE = new String("");
+
+  // アーカイブの中の csa を全て変換して sink に渡す
+  // (アーカイブごとに並列に展開して、結果はアーカイブの順、アーカイブの中はエントリの順に渡す.
+  //  変換した行は長さ QUEUE_SIZE のキューでエントリごとに渡すので、アーカイブが大きくても溜め込まない)
+  private static void convertArchives(List<Path> archives, Charset charset, int threads, ExternalSorter.Sink sink) throws IOException {
+    final int WINDOW = Math.max(1, threads);
+    ExecutorService executor = Executors.newFixedThreadPool(WINDOW);
+    try {
+      Deque<BlockingQueue<String>> queues = new ArrayDeque<>(WINDOW);
+      Deque<Future<?>> futures = new ArrayDeque<>(WINDOW);
+      for (int submitted = 0, done = 0, size = archives.size(); done < size; ++done) {
+        for (; (submitted < size) && (submitted - done < WINDOW); ++submitted) {
+          Path archive = archives.get(submitted);
+          BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+          queues.add(queue);
+          futures.add(executor.submit(() -> {
+            try {
+              CsaArchive.forEach(archive, (name, data) -> {
+                String line;
+                try {
+                  line = convert(data, charset);
+                } catch (IOException e) {
+                  System.err.println(archive + ":" + name);
+                  return;
+                }
+                if (line != null) {
+                  put(queue, line);
+                }
+              });
+            } finally {
+              put(queue, END_OF_ARCHIVE);
+            }
+            return null;
+          }));
+        }
+        // 読めなくなったアーカイブもそれまでのエントリは渡す
+        BlockingQueue<String> queue = queues.poll();
+        Future<?> future = futures.poll();
+        try {
+          for (String line; (line = queue.take()) != END_OF_ARCHIVE;) {
+            sink.accept(line);
+          }
+          future.get();
+        } catch (ExecutionException e) {
+          System.err.println(archives.get(done) + ": " + e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException(e);
         }
-        data.add(builder.toString().trim());
-      } catch (IOException e) {
-        System.err.println(file);
       }
+    } finally {
+      executor.shutdownNow();
     }
+  }
 
-    String[] array = data.toArray(new String[data.size()]);
-    Arrays.sort(array);
-    for (String value : array) {
-      System.out.println(value);
+  // キューが空くまで待って line を入れる (割り込まれたら展開をやめる)
+  private static void put(BlockingQueue<String> queue, String line) throws InterruptedIOException {
+    try {
+      queue.put(line);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
     }
   }
 
-/*
-  private static void readBody(BufferedReader in, Set<String> set) throws IOException {
-    String line;
-    while ((line = in.readLine()) != null) {
-      switch (line.charAt(0)) {
-      case '+':
-      case '-':
-        assert line.equals(decode(encode(line))): line + ": " + decode(encode(line));
-        set.add(line);
+  // 整列した行をテキストかバイナリで書き出す
+  private static void write(ExternalSorter sorter, Path binary, MoveCorpus.Encoding encoding) throws IOException {
+    if (binary != null) {
+      try (MoveCorpus.Writer writer = new MoveCorpus.Writer(binary, encoding)) {
+        sorter.writeTo(writer::add);
+      }
+    } else {
+      sorter.writeTo(System.out);
+    }
+  }
+
+  /**
+   * 差分だけ変換して、整列済みのコーパスにマージする
+   *
+   * サイズと更新時刻が manifest と同じファイルは読まない. 変わっていても内容のハッシュが同じなら出力はそのまま.
+   * 内容が変わったファイルと消えたファイルの行はコーパスから取り除く (行のハッシュで探す).
+   */
+  private static void update(Path dir, Path manifestFile, Path corpusFile, Charset charset, int threads,
+                             int runSize, Path tmpDir, Path binary, MoveCorpus.Encoding encoding,
+                             int dedup) throws IOException {
+    Manifest manifest = Manifest.load(manifestFile);
+    Manifest updated  = new Manifest();
+
+    // 変わったかもしれないファイル
+    List<Path> candidates = new ArrayList<>();
+    for (Path file : enumCsa(dir)) {
+      String key = dir.relativize(file).toString();
+      Manifest.Entry entry = manifest.entries.get(key);
+      if ((entry != null)
+          && (entry.size == Files.size(file))
+          && (entry.mtime == Files.getLastModifiedTime(file).toMillis())) {
+        updated.entries.put(key, entry);
+      } else {
+        candidates.add(file);
+      }
+    }
+
+    // 取り除く行のハッシュと個数
+    Map<String, Integer> removed = new HashMap<>();
+    int[] added = {0};
+    try (ExternalSorter sorter = new ExternalSorter(runSize, tmpDir)) {
+      convert(candidates, charset, threads, true, (file, converted) -> {
+        String key = dir.relativize(file).toString();
+        Manifest.Entry entry = manifest.entries.get(key);
+        if ((entry != null) && entry.hash.equals(converted.hash)) {
+          // 更新時刻だけ変わった
+          updated.entries.put(key, new Manifest.Entry(Files.size(file), Files.getLastModifiedTime(file).toMillis(),
+                                                      entry.hash, entry.lineHash));
+          return;
+        }
+        if ((entry != null) && !Manifest.NO_LINE.equals(entry.lineHash)) {
+          removed.merge(entry.lineHash, 1, Integer::sum);
+        }
+        if (converted.line != null) {
+          sorter.add(converted.line);
+          ++added[0];
+        }
+        updated.entries.put(key, new Manifest.Entry(Files.size(file), Files.getLastModifiedTime(file).toMillis(),
+                                                    converted.hash, Manifest.lineHash(converted.line)));
+      });
+      for (Map.Entry<String, Manifest.Entry> e : manifest.entries.entrySet()) {
+        if (!updated.entries.containsKey(e.getKey()) && !Manifest.NO_LINE.equals(e.getValue().lineHash)) {
+          removed.merge(e.getValue().lineHash, 1, Integer::sum); // 消えたファイル
+        }
+      }
+
+      System.err.printf("files        = %d%n", updated.entries.size());
+      System.err.printf("candidates   = %d%n", candidates.size());
+      System.err.printf("added        = %d%n", added[0]);
+      System.err.printf("removed      = %d%n", removed.values().stream().mapToInt(Integer::intValue).sum());
+
+      // 既存のコーパスとマージして置き換える
+      if (Files.exists(corpusFile)) {
+        sorter.merge(corpusFile);
+      }
+      Deduplicator deduplicator = (dedup >= 0) ? new Deduplicator(dedup) : null;
+
+      // 重複を除くと 1 つの行を複数のファイルが参照するので、個数ではなく参照するファイルが残っているかで取り除く
+      boolean shared = (deduplicator != null) && !removed.isEmpty();
+      Set<String>  live    = shared ? new HashSet<>() : null;
+      Set<String>  written = shared ? new HashSet<>() : null; // 出力した行のハッシュ
+      Deduplicator lost    = shared ? new Deduplicator(dedup) : null; // 参照するファイルが無くなって取り除いた行
+      if (shared) {
+        for (Manifest.Entry entry : updated.entries.values()) {
+          live.add(entry.lineHash);
+        }
+      }
+      replace(corpusFile, sorter, line -> {
+        String lineHash = removed.isEmpty() ? null : Manifest.lineHash(line);
+        if (lineHash != null) {
+          if (live != null) {
+            if (!live.contains(lineHash)) {
+              lost.add(line);
+              return false;
+            }
+          } else if (take(removed, lineHash)) {
+            return false;
+          }
+        }
+        if ((deduplicator != null) && !deduplicator.add(line)) {
+          return false;
+        }
+        if (written != null) {
+          written.add(lineHash);
+        }
+        return true;
+      });
+      if (deduplicator != null) {
+        System.err.printf("duplicates   = %d%n", deduplicator.duplicates());
+      }
+
+      // 取り除いた行と重複していたので出力しなかった棋譜を読み直して戻す (-dedup n で起きる)
+      if (shared && !lost.isEmpty()) {
+        List<Path> orphans = new ArrayList<>();
+        for (Map.Entry<String, Manifest.Entry> e : updated.entries.entrySet()) {
+          String lineHash = e.getValue().lineHash;
+          if (!Manifest.NO_LINE.equals(lineHash) && !written.contains(lineHash)) {
+            orphans.add(dir.resolve(e.getKey()));
+          }
+        }
+        try (ExternalSorter again = new ExternalSorter(runSize, tmpDir)) {
+          int[] restored = {0};
+          convert(orphans, charset, threads, false, (file, converted) -> {
+            if ((converted.line != null) && lost.contains(converted.line)) {
+              again.add(converted.line);
+              ++restored[0];
+            }
+          });
+          if (restored[0] > 0) {
+            again.merge(corpusFile);
+            Deduplicator deduplicator2 = new Deduplicator(dedup);
+            replace(corpusFile, again, deduplicator2::add);
+          }
+          System.err.printf("restored     = %d%n", restored[0]);
+        }
+      }
+    }
+    updated.save(manifestFile);
+
+    if (binary != null) {
+      try (MoveCorpus.Writer writer = new MoveCorpus.Writer(binary, encoding);
+           BufferedReader in = Files.newBufferedReader(corpusFile, StandardCharsets.UTF_8)) {
+        for (String line; (line = in.readLine()) != null;) {
+          writer.add(line);
+        }
+      }
+    }
+  }
+
+  private interface Filter {
+    boolean accept(String line) throws IOException;
+  }
+
+  // sorter の行のうち filter が受け付けたものを一時ファイルに書いてから file を置き換える
+  private static void replace(Path file, ExternalSorter sorter, Filter filter) throws IOException {
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      sorter.writeTo(line -> {
+        if (filter.accept(line)) {
+          out.write(line);
+          out.newLine();
+        }
+      });
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // 多重集合 counts から key を 1 つ取り除く (無ければ false)
+  private static boolean take(Map<String, Integer> counts, String key) {
+    Integer count = counts.get(key);
+    if (count == null) {
+      return false;
+    }
+    if (count == 1) {
+      counts.remove(key);
+    } else {
+      counts.put(key, count - 1);
+    }
+    return true;
+  }
+
+  public static void main(String[] args) throws IOException {
+    int     threads  = 1;
+    Charset charset  = Charset.forName("Shift_JIS");
+    int     runSize  = 50000;
+    Path    tmpDir   = Paths.get(System.getProperty("java.io.tmpdir"));
+    Path    binary   = null;
+    Path    manifest = null;
+    Path    corpus   = null;
+    MoveCorpus.Encoding encoding = MoveCorpus.Encoding.U16;
+    int     dedup    = -1; // 重複を除かない
+
+    // オプション
+    int argi = 0;
+    for (; (argi + 1 < args.length) && args[argi].startsWith("-"); argi += 2) {
+      switch (args[argi]) {
+      case "-threads":
+        threads = Integer.parseInt(args[argi + 1]);
+        break;
+      case "-charset":
+        charset = Charset.forName(args[argi + 1]);
+        break;
+      case "-run-size":
+        runSize = Integer.parseInt(args[argi + 1]);
+        break;
+      case "-tmp":
+        tmpDir = Paths.get(args[argi + 1]);
+        break;
+      case "-binary":
+        binary = Paths.get(args[argi + 1]);
+        break;
+      case "-encoding":
+        encoding = MoveCorpus.Encoding.valueOf(args[argi + 1].toUpperCase());
+        break;
+      case "-manifest":
+        manifest = Paths.get(args[argi + 1]);
+        break;
+      case "-corpus":
+        corpus = Paths.get(args[argi + 1]);
+        break;
+      case "-dedup":
+        dedup = "exact".equals(args[argi + 1]) ? 0 : Integer.parseInt(args[argi + 1]);
         break;
       default:
-        //ignore
+        argi = args.length; // 不明なオプション
         break;
       }
     }
-  }
-  public static void main(String[] args) {
-    List<File> files = enumCsa(new File(args[0]), new ArrayList<File>());
-    List<File> failedFiles = new ArrayList<File>();
+    if ((args.length - argi != 1) || ((manifest == null) != (corpus == null))) {
+      System.err.println("Usage: java CsaConverter [-threads n] [-charset name] [-run-size n] [-tmp dir] [-binary file [-encoding u16|int32|varint]] [-manifest file -corpus file] [-dedup exact|n] dir > corpus.txt");
+      return;
+    }
 
-    Set<String> set = new HashSet<>();
-    for (File file : files) {
-      try (BufferedReader in = new BufferedReader(new FileReader(file))) {
-        parse(in, set);
-      } catch (IOException e) {
-        System.err.println(file);
-      }
+    Path dir = Paths.get(args[argi]);
+    if (manifest != null) {
+      update(dir, manifest, corpus, charset, threads, runSize, tmpDir, binary, encoding, dedup);
+      return;
     }
 
-    String[] data = set.toArray(new String[set.size()]);
-    Arrays.sort(data);
-    for (String w : data) {
-      System.out.println(w);
+    List<Path> files    = enumCsa(dir);
+    List<Path> archives = enumArchives(dir);
+
+    try (ExternalSorter sorter = new ExternalSorter(runSize, tmpDir)) {
+      Deduplicator deduplicator = (dedup >= 0) ? new Deduplicator(dedup) : null;
+      ExternalSorter.Sink sink = line -> {
+        if ((deduplicator == null) || deduplicator.add(line)) {
+          sorter.add(line);
+        }
+      };
+      convert(files, charset, threads, sink);
+      convertArchives(archives, charset, threads, sink);
+      if (deduplicator != null) {
+        System.err.printf("duplicates   = %d%n", deduplicator.duplicates());
+      }
+      write(sorter, binary, encoding);
     }
+    System.out.flush();
   }
-*/
-}
\ No newline at end of file
+}
@@ -1,15 +1,23 @@
-import java.util.Map;
-import java.util.Set;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
 import java.util.Random;
+import java.util.function.IntConsumer;
 
 final class CsaUtility {
 
   public static final Integer BOS = Integer.MAX_VALUE-1;
   public static final Integer EOS = Integer.MAX_VALUE;
 
-  private static final Map<String, Integer> koma2int;
+  ///
+  /// encode が返す指し手 ID の上限 (BOS, EOS は含まない)
+  ///
+  static final int NUM_MOVES = 2 * 82 * 81 * 14;
+
+  ///
+  /// 駒の 2 文字の CSA 表記 ((c1 - 'A') * 26 + (c2 - 'A')) から番号への表 (無ければ -1)
+  ///
+  private static final byte[] koma2int = new byte[26 * 26];
   private static final char[] int2koma = {
     '歩', '香', '桂', '銀', '金', '角', '飛', '王',
     'と', '杏', '圭', '全',       '馬', '龍',
@@ -27,37 +35,89 @@ final class CsaUtility {
       "TO", "NY", "NK", "NG",       "UM", "RY",
     };
 
-    koma2int = new HashMap<>();
+    Arrays.fill(koma2int, (byte) -1);
     for (int i = 0, length = koma.length; i < length; ++i) {
-      koma2int.put(koma[i], i);
+      koma2int[(koma[i].charAt(0) - 'A') * 26 + (koma[i].charAt(1) - 'A')] = (byte) i;
+    }
+  }
+
+  // 駒の番号
+  static int piece(final int c1, final int c2) {
+    final int i = c1 - 'A';
+    final int j = c2 - 'A';
+    final int d = ((i >= 0) && (i < 26) && (j >= 0) && (j < 26)) ? koma2int[i * 26 + j] : -1;
+    if (d < 0) {
+      throw new IllegalArgumentException("unknown piece: " + (char) c1 + (char) c2);
     }
+    return d;
   }
 
-  // 符号をエンコードする (V = 2*82*81*14)
-  private static Integer encode(String symbol, final int status) {
-    int sg = (symbol.charAt(0) == '+') ? 0 : 1;
-    int sx = symbol.charAt(1) - '1';
-    int sy = symbol.charAt(2) - '1';
-    int ex = symbol.charAt(3) - '1';
-    int ey = symbol.charAt(4) - '1';
+  // symbol[offset..to) から始まる符号をエンコードする (V = 2*82*81*14、符号は to を越えて読まない)
+  private static int encode(final CharSequence symbol, final int offset, final int to, final int status) {
+    if (offset + 7 > to) {
+      throw new IllegalArgumentException("truncated move: " + symbol.subSequence(offset, to));
+    }
+    return encode(symbol.charAt(offset) == '+',
+                  symbol.charAt(offset + 1) - '1',
+                  symbol.charAt(offset + 2) - '1',
+                  symbol.charAt(offset + 3) - '1',
+                  symbol.charAt(offset + 4) - '1',
+                  piece(symbol.charAt(offset + 5), symbol.charAt(offset + 6)),
+                  status);
+  }
+
+  ///
+  /// ASCII のバイト列をコピーせずに CharSequence として読む
+  ///
+  private static final class Ascii implements CharSequence {
+    private final byte[] bytes;
+
+    Ascii(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public int length() {
+      return bytes.length;
+    }
 
-    if ((sx < 0) || (sy < 0)) {
+    @Override
+    public char charAt(int index) {
+      return (char) (bytes[index] & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public String toString() {
+      return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  private static int encode(final boolean sente, int sx, int sy, int ex, int ey, final int d, final int status) {
+    int sg = sente ? 0 : 1;
+
+    final boolean drop = (sx < 0) || (sy < 0); // 駒打ち
+
+    if ((status & 1) != 0) {
+      // 左右反転
+      sx = 8 - sx;
+      ex = 8 - ex;
+    }
+    if ((status & 2) != 0) {
+      // 手番反転
+      sg = 1 - sg;
+      sx = 8 - sx;
+      sy = 8 - sy;
+      ex = 8 - ex;
+      ey = 8 - ey;
+    }
+    if (drop) {
       sx = 0;
       sy = 9; // b が 81 になるようにする
-    } else {
-      if ((status & 1) != 0) {
-        // 左右反転
-        sx = 8 - sx;
-        ex = 8 - sx;
-      }
-      if ((status & 2) != 0) {
-        // 手番反転
-        sg = 1 - sg;
-        sx = 8 - sx;
-        sy = 8 - sy;
-        ex = 8 - ex;
-        ey = 8 - ey;
-      }
     }
 
     //int a = sg;
@@ -65,11 +125,36 @@ final class CsaUtility {
     int a = 0;
     int b = 0;
     int c = ex * 9 + ey;
-    int d = koma2int.get(symbol.substring(5, 7));
 
     return  ((a * 82 + b) * 81 + c) * 14 + d;
   }
 
+  ///
+  /// encode した指し手 ID を status で反転する (符号を encode(symbol, status) したのと同じ ID になる)
+  ///
+  /// encode は手番と移動元を ID に含めないので、移動先だけ反転すればよい.
+  ///
+  public static int flip(int hash, int status) {
+    if ((hash == CsaUtility.BOS) || (hash == CsaUtility.EOS)) {
+      return hash;
+    }
+    int d  = (hash           ) % 14;
+    int c  = (hash / 14      ) % 81;
+    int ab = (hash / (14 * 81));
+    int ex = c / 9;
+    int ey = c % 9;
+    if ((status & 1) != 0) {
+      // 左右反転
+      ex = 8 - ex;
+    }
+    if ((status & 2) != 0) {
+      // 手番反転
+      ex = 8 - ex;
+      ey = 8 - ey;
+    }
+    return (ab * 81 + ex * 9 + ey) * 14 + d;
+  }
+
   private static String decode(int hash) {
     int d = (hash                 ) % 14;
     int c = (hash /  14           ) % 81;
@@ -99,24 +184,78 @@ final class CsaUtility {
   ///
   ///
   public static Integer[] toIntegers(String line, boolean hasNgram, int status) {
-    String[] tokens = line.trim().split(" ");
+    int[] ids = new int[capacity(line.length())];
+    int length = tokenize(line, hasNgram, status, ids);
+    Integer[] data = new Integer[length];
+    for (int i = 0; i < length; ++i) {
+      data[i] = ids[i];
+    }
+    return data;
+  }
+
+  ///
+  /// @return 長さ length の行を tokenize するのに足りる ids の大きさ (1 手は 7 文字以上なので)
+  ///
+  public static int capacity(int length) {
+    return length / 7 + 3;
+  }
 
-    int length = tokens.length;
+  ///
+  /// 空白区切りの指し手を、文字列を作らずに ids に書き込む
+  ///
+  /// @param ids 指し手 ID を書き込む配列 (capacity(line.length()) あれば足りる)
+  /// @return 書き込んだ数
+  /// @throws IllegalArgumentException 7 文字に満たない符号か、読めない駒があるとき
+  ///
+  public static int tokenize(CharSequence line, boolean hasNgram, int status, int[] ids) {
+    return tokenize(line, 0, line.length(), hasNgram, status, ids);
+  }
+
+  ///
+  /// line[from..to) の空白区切りの指し手 (ASCII) を ids に書き込む
+  ///
+  /// @param ids 指し手 ID を書き込む配列 (capacity(to - from) あれば足りる)
+  /// @return 書き込んだ数
+  /// @throws IllegalArgumentException 7 文字に満たない符号か、読めない駒があるとき (to の先は読まない)
+  ///
+  public static int tokenize(byte[] line, int from, int to, boolean hasNgram, int status, int[] ids) {
+    return tokenize(new Ascii(line), from, to, hasNgram, status, ids);
+  }
+
+  ///
+  /// toIntegers と同じ符号列を 1 手ずつ sink に渡す
+  ///
+  /// 行全体を ID にしてから渡すので、読めない符号があって例外を投げたときは sink に何も渡していない.
+  ///
+  public static void encode(String line, boolean hasNgram, int status, IntConsumer sink) {
+    final int[] ids = new int[capacity(line.length())];
+    for (int i = 0, n = tokenize(line, hasNgram, status, ids); i < n; ++i) {
+      sink.accept(ids[i]);
+    }
+  }
+
+  ///
+  /// line[from..to) の空白区切りの指し手を ids に書き込む (tokenize と encode はどれもこれを使う)
+  ///
+  private static int tokenize(CharSequence line, int from, int to, boolean hasNgram, int status, int[] ids) {
+    int n = 0;
     if (hasNgram) {
-      Integer[] data = new Integer[length+2];
-      data[0] = CsaUtility.BOS;
-      for (int i = 0; i < length; ++i) {
-        data[i+1] = CsaUtility.encode(tokens[i], status);
+      ids[n++] = CsaUtility.BOS;
+    }
+    for (int i = from; i < to;) {
+      if (line.charAt(i) <= ' ') {
+        ++i;
+        continue;
       }
-      data[length+1] = CsaUtility.EOS;
-      return data;
-    } else {
-      Integer[] data = new Integer[length];
-      for (int i = 0; i < length; ++i) {
-        data[i] = CsaUtility.encode(tokens[i], status);
+      ids[n++] = CsaUtility.encode(line, i, to, status);
+      while ((i < to) && (line.charAt(i) > ' ')) {
+        ++i;
       }
-      return data;
     }
+    if (hasNgram) {
+      ids[n++] = CsaUtility.EOS;
+    }
+    return n;
   }
 
   public static String convertToString(Integer c) {
@@ -128,17 +267,4 @@ final class CsaUtility {
     }
     return CsaUtility.decode(c) + " ";
   }
-
-  /**
-   * @return 語彙数
-   */
-  public static int vocaburaly(final Integer[][] w) {
-    final Set<Integer> set = new HashSet<>();
-    for (Integer[] m : w) {
-      for (Integer v : m) {
-        set.add(v);
-      }
-    }
-    return set.size();
-  }
 }
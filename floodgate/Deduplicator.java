@@ -0,0 +1,165 @@
+/**
+ * 指し手の列の 128 bit ハッシュによる重複した棋譜の除去
+ *
+ * prefix が 0 なら全ての手が同じ棋譜を、正なら最初の prefix 手が同じ棋譜を重複とみなす (近似重複).
+ * ハッシュはオープンアドレス法の long 配列に持つので、1 局あたり 21〜43 byte (負荷率 3/8〜3/4) で済む.
+ */
+final class Deduplicator {
+
+  private final int prefix;
+  private final LongPairSet set = new LongPairSet();
+  private long duplicates = 0;
+  private long hi; // key で求めたハッシュ
+  private long lo;
+
+  /**
+   * @param prefix 比べる手数 (0 なら全て)
+   */
+  Deduplicator(int prefix) {
+    if (prefix < 0) {
+      throw new IllegalArgumentException("prefix must not be negative: " + prefix);
+    }
+    this.prefix = prefix;
+  }
+
+  /**
+   * @param line CsaConverter の 1 行 (空白区切りの指し手)
+   * @return 初めて見た棋譜なら true
+   */
+  boolean add(String line) {
+    key(line);
+    if (set.add(hi, lo)) {
+      return true;
+    }
+    ++duplicates;
+    return false;
+  }
+
+  /**
+   * @return line と重複する棋譜を add したことがあれば true
+   */
+  boolean contains(String line) {
+    key(line);
+    return set.contains(hi, lo);
+  }
+
+  /**
+   * @return 何も add していなければ true
+   */
+  boolean isEmpty() {
+    return set.size() == 0;
+  }
+
+  // line (の最初の prefix 手) のハッシュを hi, lo に求める
+  private void key(String line) {
+    int end = line.length();
+    if (prefix > 0) {
+      int moves = 0;
+      for (int i = 0; i < end; ++i) {
+        if ((line.charAt(i) == ' ') && (++moves == prefix)) {
+          end = i;
+          break;
+        }
+      }
+    }
+
+    long h1 = 0x9E3779B97F4A7C15L;
+    long h2 = 0xC2B2AE3D27D4EB4FL;
+    for (int i = 0; i < end; ++i) {
+      char c = line.charAt(i);
+      h1 = (h1 ^ c) * 0x100000001B3L;
+      h2 = Long.rotateLeft(h2 ^ (c * 0xFF51AFD7ED558CCDL), 31) * 0x9E3779B97F4A7C15L;
+    }
+    hi = mix(h1 ^ end);
+    lo = mix(h2 + end);
+  }
+
+  /**
+   * @return 取り除いた棋譜の数
+   */
+  long duplicates() {
+    return duplicates;
+  }
+
+  // MurmurHash3 の fmix64
+  static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * 2 つの long の組の集合 (線形探索のオープンアドレス法、(0, 0) は空きを表す)
+   */
+  static final class LongPairSet {
+    private long[] keys = new long[2 * 1024]; // 要素 i は keys[2*i], keys[2*i+1]
+    private int size = 0;
+
+    int size() {
+      return size;
+    }
+
+    /**
+     * @return 追加したら true (既にあれば false)
+     */
+    boolean add(long hi, long lo) {
+      if ((hi == 0) && (lo == 0)) {
+        lo = 1; // 空きと区別する
+      }
+      if (4 * (size + 1) > 3 * (keys.length / 2)) { // 負荷率 3/4 まで
+        grow();
+      }
+      if (insert(keys, hi, lo)) {
+        ++size;
+        return true;
+      }
+      return false;
+    }
+
+    boolean contains(long hi, long lo) {
+      if ((hi == 0) && (lo == 0)) {
+        lo = 1;
+      }
+      int mask = keys.length / 2 - 1;
+      for (int i = (int) (hi ^ (hi >>> 32)) & mask;; i = (i + 1) & mask) {
+        long h = keys[2 * i];
+        long l = keys[2 * i + 1];
+        if ((h == hi) && (l == lo)) {
+          return true;
+        }
+        if ((h == 0) && (l == 0)) {
+          return false;
+        }
+      }
+    }
+
+    private static boolean insert(long[] keys, long hi, long lo) {
+      int mask = keys.length / 2 - 1;
+      for (int i = (int) (hi ^ (hi >>> 32)) & mask;; i = (i + 1) & mask) {
+        long h = keys[2 * i];
+        long l = keys[2 * i + 1];
+        if ((h == 0) && (l == 0)) {
+          keys[2 * i]     = hi;
+          keys[2 * i + 1] = lo;
+          return true;
+        }
+        if ((h == hi) && (l == lo)) {
+          return false;
+        }
+      }
+    }
+
+    private void grow() {
+      long[] old = keys;
+      keys = new long[2 * old.length];
+      for (int i = 0; i < old.length; i += 2) {
+        if ((old[i] != 0) || (old[i + 1] != 0)) {
+          insert(keys, old[i], old[i + 1]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,185 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * 行を辞書順 (String.compareTo) に整列する外部マージソート
+ *
+ * 行は runSize 行ずつメモリ上で整列して一時ファイル (ラン) に書き出し、
+ * 最後に全てのランを PriorityQueue で k-way マージする.
+ * ランが MAX_FAN_IN を超えたら、先頭から MAX_FAN_IN 個ずつマージして 1 つのランにまとめる.
+ * メモリに持つのは高々 runSize 行と、マージ中の各ランの先頭の 1 行だけ.
+ */
+final class ExternalSorter implements AutoCloseable {
+
+  /**
+   * 1 度にマージするランの数の上限 (同時に開くファイルの数)
+   */
+  private static final int MAX_FAN_IN = 256;
+
+  private final int runSize;
+  private final Path dir;
+
+  private final List<String> buffer = new ArrayList<>();
+  private final List<Path> runs = new ArrayList<>();
+  private final List<Path> inputs = new ArrayList<>(); // 呼び出し側のファイル (削除しない)
+
+  /**
+   * @param runSize 1 つのランの行数
+   * @param dir     ランを置くディレクトリ
+   */
+  ExternalSorter(int runSize, Path dir) {
+    if (runSize < 1) {
+      throw new IllegalArgumentException("runSize must be positive: " + runSize);
+    }
+    this.runSize = runSize;
+    this.dir     = dir;
+  }
+
+  void add(String line) throws IOException {
+    buffer.add(line);
+    if (buffer.size() >= runSize) {
+      spill();
+    }
+  }
+
+  /**
+   * 整列済みのファイルを最後のマージに加える (ファイルはそのまま残す)
+   */
+  void merge(Path sorted) {
+    inputs.add(sorted);
+  }
+
+  // バッファを整列してランに書き出す
+  private void spill() throws IOException {
+    Collections.sort(buffer);
+    Path run = Files.createTempFile(dir, "run", ".txt");
+    runs.add(run);
+    try (BufferedWriter out = Files.newBufferedWriter(run, StandardCharsets.UTF_8)) {
+      for (String line : buffer) {
+        out.write(line);
+        out.newLine();
+      }
+    }
+    buffer.clear();
+  }
+
+  /**
+   * 整列した行を全て書き出す
+   */
+  void writeTo(PrintStream out) throws IOException {
+    writeTo(out::println);
+  }
+
+  /**
+   * 整列した行を順に sink に渡す
+   */
+  void writeTo(Sink sink) throws IOException {
+    if (runs.isEmpty() && inputs.isEmpty()) {
+      // 1 つのランに収まった
+      Collections.sort(buffer);
+      for (String line : buffer) {
+        sink.accept(line);
+      }
+      return;
+    }
+
+    if (!buffer.isEmpty()) {
+      spill();
+    }
+    while ((runs.size() + inputs.size() > MAX_FAN_IN) && (runs.size() > 1)) {
+      int n = Math.min(MAX_FAN_IN, runs.size());
+      List<Path> group = new ArrayList<>(runs.subList(0, n));
+      Path run = Files.createTempFile(dir, "run", ".txt");
+      try (BufferedWriter writer = Files.newBufferedWriter(run, StandardCharsets.UTF_8)) {
+        merge(group, line -> {
+          writer.write(line);
+          writer.newLine();
+        });
+      }
+      for (Path path : group) {
+        Files.delete(path);
+      }
+      runs.subList(0, n).clear();
+      runs.add(run);
+    }
+    List<Path> all = new ArrayList<>(runs);
+    all.addAll(inputs);
+    merge(all, sink);
+  }
+
+  interface Sink {
+    void accept(String line) throws IOException;
+  }
+
+  // マージ中のランの先頭の行
+  private static final class Head implements Comparable<Head> {
+    final BufferedReader in;
+    final int run;
+    String line;
+
+    Head(BufferedReader in, int run) {
+      this.in  = in;
+      this.run = run;
+    }
+
+    boolean next() throws IOException {
+      return (line = in.readLine()) != null;
+    }
+
+    @Override
+    public int compareTo(Head other) {
+      int c = line.compareTo(other.line);
+      return (c != 0) ? c : Integer.compare(run, other.run);
+    }
+  }
+
+  // k-way マージ
+  private static void merge(List<Path> runs, Sink sink) throws IOException {
+    List<BufferedReader> readers = new ArrayList<>(runs.size());
+    try {
+      PriorityQueue<Head> queue = new PriorityQueue<>(Math.max(1, runs.size()));
+      for (int i = 0, size = runs.size(); i < size; ++i) {
+        BufferedReader in = Files.newBufferedReader(runs.get(i), StandardCharsets.UTF_8);
+        readers.add(in);
+        Head head = new Head(in, i);
+        if (head.next()) {
+          queue.add(head);
+        }
+      }
+      while (!queue.isEmpty()) {
+        Head head = queue.poll();
+        sink.accept(head.line);
+        if (head.next()) {
+          queue.add(head);
+        }
+      }
+    } finally {
+      for (BufferedReader in : readers) {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * ランを削除する
+   */
+  @Override
+  public void close() throws IOException {
+    for (Path run : runs) {
+      Files.deleteIfExists(run);
+    }
+    runs.clear();
+    buffer.clear();
+  }
+}
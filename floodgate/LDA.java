@@ -1,13 +1,10 @@
-import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.io.FileReader;
 import java.io.File;
 import java.io.IOException;
 
 import java.util.Random;
-import java.util.List;
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.function.IntFunction;
 
 final class LDA {
 
@@ -50,10 +47,21 @@ final class LDA {
     this.theta_mk = new double[M][K];
   }
 
+  int numTopics() {
+    return K;
+  }
+
+  /**
+   * @return トピックごとの単語分布 (コピーしないので呼び出し側で書き換えないこと)
+   */
+  double[][] phi_kv() {
+    return phi_kv;
+  }
+
   /**
    * @return パープレキシティ
    */
-  private double perplexity(final Integer [][] w) {
+  private double perplexity(final int[][] w) {
     int n = 0; // 全単語数
     double sum = 0;
     for (int m = 0, M = w.length; m < M; ++m) {
@@ -89,9 +97,9 @@ final class LDA {
    * 文章ごとのトピック分布を更新
    */
   private void update_theta_mk(
-    final int    [][] n_mk ,
-    final Integer[][] w    ,
-    final double      alpha)
+    final int   [][] n_mk ,
+    final int   [][] w    ,
+    final double     alpha)
   {
     for (int m = 0, M = w.length; m < M; ++m) {
       final int n_m = w[m].length;
@@ -101,16 +109,42 @@ final class LDA {
     }
   }
 
+  /**
+   * 反復ごとに呼ばれるコールバック
+   */
+  interface Monitor {
+    /**
+     * @param n 反復回数
+     * @param perplexity パープレキシティ
+     * @return 反復を続けるなら true
+     */
+    boolean update(int n, double perplexity);
+  }
+
   /**
    * @param w 文章ごとの単語集合
    * @param alpha ハイパーパラメータ
    * @param beta ハイパーパラメータ
    * @param N サンプルサイズ
    */
-  void inference(final Integer[][] w, final double alpha, final double beta, final int sampleSize) {
-    assert(w.length == M);
+  void inference(final int[][] w, final double alpha, final double beta, final int sampleSize) {
+    inference(w, alpha, beta, sampleSize, new Random(), (n, perplexity) -> {
+      System.err.printf("iter[%d]: %f%n", n, perplexity);
+      return true;
+    });
+  }
 
-    final Random rnd = new Random();
+  /**
+   * @param w 文章ごとの単語集合 (読むだけなので複数の LDA で共有してよい)
+   * @param alpha ハイパーパラメータ
+   * @param beta ハイパーパラメータ
+   * @param N サンプルサイズ
+   * @param rnd 乱数生成器
+   * @param monitor 反復ごとに呼ばれるコールバック (false を返したら打ち切る)
+   */
+  void inference(final int[][] w, final double alpha, final double beta, final int sampleSize,
+                 final Random rnd, final Monitor monitor) {
+    assert(w.length == M);
 
     // 各単語のトピックをランダムに割り振る
     final int[][] z = new int[M][];
@@ -194,6 +228,129 @@ final class LDA {
       update_phi_kv  (n_vk, n_k, beta );
       update_theta_mk(n_mk, w  , alpha);
 
+      // パープレキシティ
+      if (!monitor.update(n, perplexity(w))) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * トピックごとの単語分布を更新 (CVB0 の期待値の数から)
+   */
+  private void update_phi_kv(
+    final double[][] n_vk,
+    final double[]   n_k ,
+    final double     beta)
+  {
+    for (int k = 0; k < K; ++k) {
+      for (int v = 0; v < V; ++v) {
+        phi_kv[k][v] = (n_vk[v][k] + beta) / (n_k[k] + V * beta);
+      }
+    }
+  }
+
+  /**
+   * 文章ごとのトピック分布を更新 (CVB0 の期待値の数から)
+   */
+  private void update_theta_mk(
+    final double[][] n_mk ,
+    final int   [][] w    ,
+    final double     alpha)
+  {
+    for (int m = 0, M = w.length; m < M; ++m) {
+      final int n_m = w[m].length;
+      for (int k = 0; k < K; ++k) {
+        theta_mk[m][k] = (n_mk[m][k] + alpha) / (n_m + K * alpha);
+      }
+    }
+  }
+
+  /**
+   * 周辺化変分ベイズ (CVB0) で推定する
+   *
+   * 各単語のトピックを負担率 (K 次元の確率ベクトル) で持ち、決定的に更新する。
+   * 乱数を使うのは負担率の初期化だけなので、同じ seed なら同じ結果になる。
+   *
+   * @param w 文章ごとの単語集合
+   * @param alpha ハイパーパラメータ
+   * @param beta ハイパーパラメータ
+   * @param sweeps 反復回数
+   * @param seed 初期化に使う乱数の種
+   */
+  void inference_cvb0(final int[][] w, final double alpha, final double beta, final int sweeps, final long seed) {
+    assert(w.length == M);
+
+    final Random rnd = new Random(seed);
+
+    // 各単語のトピックの負担率をランダムに初期化する (文章ごとに n_m 行 K 列)
+    final float[][] gamma = new float[M][];
+    for (int m = 0; m < M; ++m) {
+      final int n_m = w[m].length;
+      gamma[m] = new float[n_m * K];
+      for (int i = 0; i < n_m; ++i) {
+        float sum = 0;
+        for (int k = 0; k < K; ++k) {
+          sum += gamma[m][i * K + k] = rnd.nextFloat() + 0.5f;
+        }
+        for (int k = 0; k < K; ++k) {
+          gamma[m][i * K + k] /= sum;
+        }
+      }
+    }
+
+    // 期待値の数を数える (負担率を足し引きし続けるので、誤差が溜まらないように double で持つ)
+    final double[][] n_mk = new double[M][K];
+    final double[][] n_vk = new double[V][K];
+    final double[]   n_k  = new double[K];
+    for (int m = 0; m < M; ++m) {
+      for (int i = 0, n_m = w[m].length; i < n_m; ++i) {
+        final int v = w[m][i];
+        for (int k = 0; k < K; ++k) {
+          final float g = gamma[m][i * K + k];
+          n_mk[m][k] += g;
+          n_vk[v][k] += g;
+          n_k    [k] += g;
+        }
+      }
+    }
+
+    final double vb = beta * V;
+    for (int n = 1; n <= sweeps; ++n) {
+      for (int m = 0; m < M; ++m) {
+        final float [] gamma_m = gamma[m];
+        final double[] n_m_k   = n_mk[m];
+        for (int i = 0, n_m = w[m].length; i < n_m; ++i) {
+          final double[] n_v_k  = n_vk[w[m][i]];
+          final int      offset = i * K;
+
+          // 自分の寄与を除いた数から新しい負担率を求める
+          double sum = 0;
+          for (int k = 0; k < K; ++k) {
+            final float g = gamma_m[offset + k];
+            final double p
+              = (n_m_k[k] - g + alpha)
+              * (n_v_k[k] - g + beta )
+              / (n_k  [k] - g + vb   );
+            n_m_k[k] -= g;
+            n_v_k[k] -= g;
+            n_k  [k] -= g;
+            gamma_m[offset + k] = (float) p;
+            sum += p;
+          }
+          final double norm = 1.0 / sum;
+          for (int k = 0; k < K; ++k) {
+            final float g = gamma_m[offset + k] *= norm;
+            n_m_k[k] += g;
+            n_v_k[k] += g;
+            n_k  [k] += g;
+          }
+        }
+      }
+
+      update_phi_kv  (n_vk, n_k, beta );
+      update_theta_mk(n_mk, w  , alpha);
+
       // パープレキシティ
       System.err.printf("iter[%d]: %f%n", n, perplexity(w));
     }
@@ -228,7 +385,44 @@ final class LDA {
     }
   }
 
+  /**
+   * トピックごとの単語分布を LDAModel で読み込める形式で保存する
+   */
+  void save(final File file) throws IOException {
+    LDAModel.save(file, phi_kv);
+  }
+
+  /**
+   * 語彙の表とともに保存する
+   */
+  void save(final File file, final CorpusStatistics stats) throws IOException {
+    LDAModel.save(file, phi_kv, stats.words());
+  }
+
   void dump() {
+    dump(phi_kv);
+  }
+
+  void dump(final CorpusStatistics stats) {
+    dump(phi_kv, stats::label);
+  }
+
+  /**
+   * トピックごとの単語分布を出力する (単語 ID は CsaUtility.encode の ID)
+   */
+  static void dump(final double[][] phi_kv) {
+    dump(phi_kv, CsaUtility::convertToString);
+  }
+
+  /**
+   * トピックごとの単語分布を出力する
+   *
+   * @param label 単語 ID の表記
+   */
+  static void dump(final double[][] phi_kv, final IntFunction<String> label) {
+    final int K = phi_kv.length;
+    final int V = phi_kv[0].length;
+
     int sampleSize = 1000;
     Random rnd = new Random();
     double[] theta = new double[V+1];
@@ -243,7 +437,7 @@ final class LDA {
         double xi = theta[V] * (i + rnd.nextDouble()) / sampleSize;
         for (int v = 0; v < V; ++v) {
           if (xi < theta[v+1]) {
-            System.out.printf(CsaUtility.convertToString(v).trim());
+            System.out.printf(label.apply(v).trim());
             break;
           }
         }
@@ -255,7 +449,7 @@ final class LDA {
     Token[] chunks = new Token[V];
     for (int k = 0; k < K; ++k) {
       for (int v = 0; v < V; ++v) {
-        chunks[v] = new Token(CsaUtility.convertToString(v), phi_kv[k][v]);
+        chunks[v] = new Token(label.apply(v), phi_kv[k][v]);
       }
       Arrays.sort(chunks);
       for (int v = 0; v < V; ++v) {
@@ -295,8 +489,9 @@ final class LDA {
   }
 
   public static void main(String[] args) throws IOException {
-    if (args.length != 5) {
-      System.err.println("Usage: java LDA corpus-file num-topics alpha beta sample-size");
+    if ((args.length < 5) || (args.length > 7)
+        || ((args.length == 7) && !"gibbs".equals(args[6]) && !"cvb0".equals(args[6]))) {
+      System.err.println("Usage: java LDA corpus-file num-topics alpha beta sample-size [model-file|- [gibbs|cvb0]]");
       return;
     }
 
@@ -305,25 +500,15 @@ final class LDA {
     final double alpha      = Double .parseDouble(args[2]);
     final double beta       = Double .parseDouble(args[3]);
     final int    sampleSize = Integer.parseInt   (args[4]);
+    final String method     = (args.length == 7) ? args[6] : "gibbs";
 
-    final Integer[][] w;
-    try (BufferedReader in = new BufferedReader(new FileReader(file))) {
-      List<Integer[]> data = new ArrayList<>();
-
-      in.lines()
-        .map(line -> line.trim())
-        .filter(line -> !line.isEmpty())
-        .forEach(line -> {
-          data.add(CsaUtility.toIntegers(line, false));
-        });
+    final int[][] w = MoveCorpus.read(file); // テキストかバイナリのコーパス
 
-      w = new Integer[data.size()][];
-      for (int i = 0, length = w.length; i < length; ++i) {
-        w[i] = data.get(i);
-      }
-    }
+    // 出現した指し手だけに詰めた ID に置き換える
+    final CorpusStatistics stats = CorpusStatistics.of(w);
+    stats.remap(w);
 
-    final int V = 9*9*14;
+    final int V = stats.size();
     final int M = w.length;
 
     System.err.printf("K            = %d%n", K);
@@ -332,9 +517,17 @@ final class LDA {
     System.err.printf("alpha        = %f%n", alpha);
     System.err.printf("beta         = %f%n", beta );
     System.err.printf("sample-size  = %d%n", sampleSize);
+    System.err.printf("method       = %s%n", method);
 
     LDA lda = new LDA(K, M, V);
-    lda.inference(w, alpha, beta, sampleSize);
-    lda.dump();
+    if ("cvb0".equals(method)) {
+      lda.inference_cvb0(w, alpha, beta, sampleSize, 0);
+    } else {
+      lda.inference(w, alpha, beta, sampleSize);
+    }
+    lda.dump(stats);
+    if ((args.length >= 6) && !"-".equals(args[5])) {
+      lda.save(new File(args[5]), stats);
+    }
   }
 }
@@ -0,0 +1,312 @@
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Random;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 独立な LDA のチェインを複数同時に走らせて収束を診断する
+ *
+ * コーパスは全チェインで共有する (読むだけ)。トピック数ごとにチェインをまとめ、
+ * interval 回ごとに全チェインがそろったところで
+ *   - パープレキシティの Gelman-Rubin 統計量 (R-hat)
+ *   - 先頭のチェインとのトピックの対応 (phi のコサイン類似度で貪欲にマッチング)
+ * を求め、両方が閾値を満たしたらそのトピック数のチェインを打ち切る。
+ * R-hat を求めるので num-chains は 2 以上。同じトピック数のチェインはチェックポイントで待ち合わせるので
+ * num-chains 本のスレッドで同時に走らせ、トピック数ごとのまとまりは
+ * max(1, プロセッサ数 / num-chains) 個ずつ走らせる (スレッド数はそれらの積まで)。
+ *
+ *   Usage: java -cp . LDAChains corpus-file alpha beta sample-size interval num-chains num-topics...
+ */
+final class LDAChains {
+
+  /**
+   * 収束とみなす R-hat の上限
+   */
+  private static final double RHAT_THRESHOLD = 1.1;
+
+  /**
+   * 収束とみなすトピックの対応の類似度の下限
+   */
+  private static final double ALIGNMENT_THRESHOLD = 0.9;
+
+  /**
+   * 1 本のチェイン
+   */
+  private static final class Chain {
+    private final int  K;    ///< トピック数
+    private final long seed; ///< 乱数の種
+    private final LDA  lda;
+
+    private final double[] perplexity; ///< 反復ごとのパープレキシティ
+    private int numSamples;            ///< 済んだ反復回数
+
+    private double[][] phi_kv; ///< チェックポイントでの phi_kv のコピー
+
+    Chain(final int K, final int M, final int V, final long seed, final int sampleSize) {
+      this.K    = K;
+      this.seed = seed;
+      this.lda  = new LDA(K, M, V);
+      this.perplexity = new double[sampleSize + 1];
+    }
+  }
+
+  /**
+   * トピック数が同じチェインのまとまり
+   */
+  private static final class Group {
+    private final int K;
+    private final List<Chain> chains = new ArrayList<>();
+    private final int interval;
+
+    private CyclicBarrier barrier;
+    private volatile boolean converged;
+
+    Group(final int K, final int interval) {
+      this.K = K;
+      this.interval = interval;
+    }
+
+    /**
+     * チェインごとにスレッドを立てて、全て終わるまで待つ
+     * (チェックポイントで待ち合わせるので全チェインが同時に動いている必要がある)
+     */
+    void run(final int[][] w, final double alpha, final double beta, final int sampleSize) throws InterruptedException {
+      final List<Thread> threads = new ArrayList<>();
+      for (Chain chain : chains) {
+        final Thread thread = new Thread(() -> {
+          chain.lda.inference(w, alpha, beta, sampleSize, new Random(chain.seed), (n, perplexity) -> {
+            chain.perplexity[n] = perplexity;
+            chain.numSamples = n;
+            if ((n % interval == 0) || (n == sampleSize)) {
+              chain.phi_kv = copy(chain.lda.phi_kv());
+              try {
+                barrier.await();
+              } catch (InterruptedException | BrokenBarrierException e) {
+                return false;
+              }
+              return !converged;
+            }
+            return true;
+          });
+        });
+        thread.start();
+        threads.add(thread);
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    }
+
+    /**
+     * 全チェインがチェックポイントにそろったときに呼ばれる
+     */
+    void diagnose() {
+      final int n = chains.get(0).numSamples;
+      final double rhat = rhat(n);
+
+      double alignment = 1;
+      final double[][] reference = chains.get(0).phi_kv;
+      for (int j = 1, size = chains.size(); j < size; ++j) {
+        alignment = Math.min(alignment, align(reference, chains.get(j).phi_kv));
+      }
+
+      System.err.printf("K=%d iter[%d]: perplexity=%s R-hat=%f alignment=%f%n",
+        K, n, perplexities(n), rhat, alignment);
+
+      if ((chains.size() > 1) && (rhat < RHAT_THRESHOLD) && (alignment > ALIGNMENT_THRESHOLD)) {
+        converged = true;
+      }
+    }
+
+    private String perplexities(final int n) {
+      StringBuilder builder = new StringBuilder();
+      for (Chain chain : chains) {
+        builder.append(builder.length() == 0 ? "[" : ", ");
+        builder.append(String.format("%.3f", chain.perplexity[n]));
+      }
+      return builder.append("]").toString();
+    }
+
+    /**
+     * 直近 interval 回のパープレキシティの系列から Gelman-Rubin 統計量を求める
+     */
+    private double rhat(final int n) {
+      final int J = chains.size();
+      final int L = Math.min(n, interval);
+      if ((J < 2) || (L < 2)) {
+        return Double.NaN;
+      }
+
+      final double[] mean = new double[J];
+      double grandMean = 0;
+      double W = 0;
+      for (int j = 0; j < J; ++j) {
+        final double[] x = chains.get(j).perplexity;
+        for (int i = n - L + 1; i <= n; ++i) {
+          mean[j] += x[i];
+        }
+        mean[j] /= L;
+        grandMean += mean[j] / J;
+
+        double var = 0;
+        for (int i = n - L + 1; i <= n; ++i) {
+          var += (x[i] - mean[j]) * (x[i] - mean[j]);
+        }
+        W += var / (L - 1) / J;
+      }
+
+      double B = 0;
+      for (int j = 0; j < J; ++j) {
+        B += (mean[j] - grandMean) * (mean[j] - grandMean);
+      }
+      B *= (double) L / (J - 1);
+
+      final double var = (L - 1.0) / L * W + B / L;
+      return Math.sqrt(var / W);
+    }
+  }
+
+  /**
+   * 2 つのチェインのトピックを類似度の高い順に貪欲に対応させる
+   *
+   * @return 対応したトピック間のコサイン類似度の平均
+   */
+  static double align(final double[][] a, final double[][] b) {
+    final int K = a.length;
+
+    final double[][] similarity = new double[K][K];
+    for (int i = 0; i < K; ++i) {
+      for (int j = 0; j < K; ++j) {
+        similarity[i][j] = cosine(a[i], b[j]);
+      }
+    }
+
+    final boolean[] usedA = new boolean[K];
+    final boolean[] usedB = new boolean[K];
+    double sum = 0;
+    for (int n = 0; n < K; ++n) {
+      int bestI = -1;
+      int bestJ = -1;
+      for (int i = 0; i < K; ++i) {
+        if (usedA[i]) {
+          continue;
+        }
+        for (int j = 0; j < K; ++j) {
+          if (!usedB[j] && ((bestI < 0) || (similarity[i][j] > similarity[bestI][bestJ]))) {
+            bestI = i;
+            bestJ = j;
+          }
+        }
+      }
+      usedA[bestI] = true;
+      usedB[bestJ] = true;
+      sum += similarity[bestI][bestJ];
+    }
+    return sum / K;
+  }
+
+  private static double cosine(final double[] x, final double[] y) {
+    double xy = 0;
+    double xx = 0;
+    double yy = 0;
+    for (int i = 0, length = x.length; i < length; ++i) {
+      xy += x[i] * y[i];
+      xx += x[i] * x[i];
+      yy += y[i] * y[i];
+    }
+    return xy / Math.sqrt(xx * yy);
+  }
+
+  private static double[][] copy(final double[][] x) {
+    final double[][] y = new double[x.length][];
+    for (int i = 0, length = x.length; i < length; ++i) {
+      y[i] = x[i].clone();
+    }
+    return y;
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if ((args.length < 7) || (Integer.parseInt(args[3]) < 1) || (Integer.parseInt(args[4]) < 1)
+        || (Integer.parseInt(args[5]) < 2)) {
+      System.err.println("Usage: java LDAChains corpus-file alpha beta sample-size interval num-chains num-topics...");
+      System.err.println("  (sample-size >= 1, interval >= 1, num-chains >= 2)");
+      return;
+    }
+
+    final File   file       = new File(args[0]);
+    final double alpha      = Double .parseDouble(args[1]);
+    final double beta       = Double .parseDouble(args[2]);
+    final int    sampleSize = Integer.parseInt   (args[3]);
+    final int    interval   = Integer.parseInt   (args[4]);
+    final int    numChains  = Integer.parseInt   (args[5]);
+
+    final int[][] w = MoveCorpus.read(file); // テキストかバイナリのコーパス
+
+    // 出現した指し手だけに詰めた ID に置き換える
+    final CorpusStatistics stats = CorpusStatistics.of(w);
+    stats.remap(w);
+
+    final int V = stats.size();
+    final int M = w.length;
+
+    System.err.printf("V            = %d%n", V);
+    System.err.printf("M            = %d%n", M);
+    System.err.printf("alpha        = %f%n", alpha);
+    System.err.printf("beta         = %f%n", beta );
+    System.err.printf("sample-size  = %d%n", sampleSize);
+    System.err.printf("interval     = %d%n", interval);
+    System.err.printf("num-chains   = %d%n", numChains);
+
+    final List<Group> groups = new ArrayList<>();
+    for (int i = 6; i < args.length; ++i) {
+      final Group group = new Group(Integer.parseInt(args[i]), interval);
+      for (int j = 1; j <= numChains; ++j) {
+        group.chains.add(new Chain(group.K, M, V, 1000L * group.K + j, sampleSize));
+      }
+      group.barrier = new CyclicBarrier(numChains, group::diagnose);
+      groups.add(group);
+    }
+
+    // トピック数ごとのまとまりを固定のスレッドプールで走らせる (まとまりの中はチェインごとのスレッド)
+    final int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / numChains);
+    final ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, groups.size()));
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (Group group : groups) {
+        futures.add(executor.submit(() -> {
+          group.run(w, alpha, beta, sampleSize);
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          throw new IllegalStateException(e.getCause());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // トピック数ごとの結果
+    for (Group group : groups) {
+      double sum = 0;
+      for (Chain chain : group.chains) {
+        System.out.printf("K=%d seed=%d iterations=%d perplexity=%f%n",
+          chain.K, chain.seed, chain.numSamples, chain.perplexity[chain.numSamples]);
+        sum += chain.perplexity[chain.numSamples];
+      }
+      System.out.printf("K=%d mean-perplexity=%f converged=%b%n",
+        group.K, sum / group.chains.size(), group.converged);
+    }
+  }
+}
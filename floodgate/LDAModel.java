@@ -0,0 +1,376 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+
+/**
+ * 学習済みの phi_kv を使って新しい棋譜のトピック分布を推定する (fold-in)
+ *
+ *   Usage: java -cp . LDAModel model-file alpha iterations [gibbs|cvb0] < corpus.txt
+ */
+final class LDAModel {
+
+  /**
+   * ファイルの先頭に書くマジックナンバー ("LDA1")
+   */
+  private static final int MAGIC = 0x4C444131;
+
+  /**
+   * ヘッダのバイト数 (magic, K, V, flags)
+   */
+  private static final int HEADER_SIZE = 16;
+
+  /**
+   * phi の後ろに語彙の表 (密な ID ごとの疎な ID、V 個の int) があることを表すフラグ
+   */
+  private static final int FLAG_VOCABULARY = 1;
+
+  /**
+   * fold-in の方法
+   */
+  enum Method {
+    GIBBS,
+    CVB0,
+  }
+
+  /**
+   * トピック数
+   */
+  private final int K;
+
+  /**
+   * 語彙数
+   */
+  private final int V;
+
+  /**
+   * 単語ごとのトピック分布 (phi_kv を転置して v 行 K 列で並べたもの)
+   */
+  private final DoubleBuffer phi_vk;
+
+  /**
+   * 疎な ID (CsaUtility.encode) から密な ID (語彙の表が無いモデルでは null)
+   */
+  private final int[] ids;
+
+  private LDAModel(final int K, final int V, final DoubleBuffer phi_vk, final int[] ids) {
+    this.K = K;
+    this.V = V;
+    this.phi_vk = phi_vk;
+    this.ids = ids;
+  }
+
+  int numTopics() {
+    return K;
+  }
+
+  int numWords() {
+    return V;
+  }
+
+  /**
+   * phi_kv をバイナリ形式で保存する
+   *
+   * 推定時に 1 単語ぶんの K 要素を連続して読めるように、単語ごとに K 個の double を並べる
+   * (リトルエンディアン)。
+   */
+  static void save(final File file, final double[][] phi_kv) throws IOException {
+    save(file, phi_kv, null);
+  }
+
+  /**
+   * phi_kv と語彙の表を保存する
+   *
+   * @param words 密な ID から疎な ID への対応 (CorpusStatistics.words()、null なら保存しない)
+   */
+  static void save(final File file, final double[][] phi_kv, final int[] words) throws IOException {
+    final int K = phi_kv.length;
+    final int V = phi_kv[0].length;
+    if ((words != null) && (words.length != V)) {
+      throw new IllegalArgumentException("vocabulary size mismatch: " + words.length + " != " + V);
+    }
+
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+           StandardOpenOption.CREATE,
+           StandardOpenOption.TRUNCATE_EXISTING,
+           StandardOpenOption.WRITE)) {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(MAGIC).putInt(K).putInt(V).putInt((words != null) ? FLAG_VOCABULARY : 0).flip();
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+
+      final ByteBuffer row = ByteBuffer.allocate(K * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      for (int v = 0; v < V; ++v) {
+        row.clear();
+        for (int k = 0; k < K; ++k) {
+          row.putDouble(phi_kv[k][v]);
+        }
+        row.flip();
+        while (row.hasRemaining()) {
+          channel.write(row);
+        }
+      }
+
+      if (words != null) {
+        final ByteBuffer table = ByteBuffer.allocate(V * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        table.asIntBuffer().put(words);
+        while (table.hasRemaining()) {
+          channel.write(table);
+        }
+      }
+    }
+  }
+
+  /**
+   * 保存したモデルをメモリマップして読み込む
+   */
+  static LDAModel load(final File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      final ByteBuffer buffer = channel
+        .map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+        .order(ByteOrder.LITTLE_ENDIAN);
+      if (buffer.getInt(0) != MAGIC) {
+        throw new IOException("invalid lda model: " + file);
+      }
+      final int K = buffer.getInt(4);
+      final int V = buffer.getInt(8);
+      final int flags = buffer.getInt(12);
+      final long phiSize = (long) K * V * Double.BYTES;
+      final long tableSize = ((flags & FLAG_VOCABULARY) != 0) ? (long) V * Integer.BYTES : 0;
+      if (channel.size() != HEADER_SIZE + phiSize + tableSize) {
+        throw new IOException("truncated lda model: " + file);
+      }
+
+      int[] ids = null;
+      if (tableSize > 0) {
+        ids = new int[CsaUtility.NUM_MOVES];
+        Arrays.fill(ids, Integer.MAX_VALUE);
+        for (int v = 0; v < V; ++v) {
+          final int word = buffer.getInt((int) (HEADER_SIZE + phiSize) + v * Integer.BYTES);
+          if ((word < 0) || (word >= CsaUtility.NUM_MOVES)) {
+            throw new IOException("invalid vocabulary in lda model: " + file);
+          }
+          ids[word] = v;
+        }
+      }
+      buffer.position(HEADER_SIZE).limit((int) (HEADER_SIZE + phiSize));
+      return new LDAModel(K, V, buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer(), ids);
+    }
+  }
+
+  /**
+   * 単語 v がトピック k から生成される確率
+   */
+  double phi(final int k, final int v) {
+    return phi_vk.get(v * K + k);
+  }
+
+  /**
+   * phi を固定したギブスサンプリングで文章のトピック分布を推定する
+   *
+   * @param w 文章の単語列
+   * @param alpha ハイパーパラメータ
+   * @param iterations 反復回数 (後半のサンプルを平均する)
+   * @param rnd 乱数生成器
+   * @return トピック分布
+   */
+  double[] gibbs(final int[] w, final double alpha, final int iterations, final Random rnd) {
+    final int n_m = w.length;
+
+    final int[] z = new int[n_m];
+    final int[] n_k = new int[K];
+    for (int i = 0; i < n_m; ++i) {
+      if (w[i] < V) {
+        ++n_k[z[i] = rnd.nextInt(K)];
+      }
+    }
+
+    final double[] theta = new double[K+1];
+    final double[] sum_k = new double[K];
+    int numSamples = 0;
+    for (int n = 1; n <= iterations; ++n) {
+      for (int i = 0; i < n_m; ++i) {
+        final int v = w[i];
+        if (v >= V) {
+          continue; // 学習時に現れなかった単語は無視する
+        }
+        --n_k[z[i]];
+
+        final int offset = v * K;
+        for (int k = 0; k < K; ++k) {
+          theta[k+1] = theta[k] + (n_k[k] + alpha) * phi_vk.get(offset + k);
+        }
+        final double xi = theta[K] * rnd.nextDouble();
+        int k = 0;
+        while ((k < K-1) && (xi >= theta[k+1])) {
+          ++k;
+        }
+
+        ++n_k[z[i] = k];
+      }
+
+      if (2 * n > iterations) {
+        for (int k = 0; k < K; ++k) {
+          sum_k[k] += n_k[k];
+        }
+        ++numSamples;
+      }
+    }
+    if (numSamples == 0) {
+      // 反復しなかったときは初期の割り当てを使う
+      for (int k = 0; k < K; ++k) {
+        sum_k[k] = n_k[k];
+      }
+      numSamples = 1;
+    }
+
+    int length = 0;
+    for (int k = 0; k < K; ++k) {
+      length += n_k[k];
+    }
+    for (int k = 0; k < K; ++k) {
+      sum_k[k] = (sum_k[k] / numSamples + alpha) / (length + K * alpha);
+    }
+    return sum_k;
+  }
+
+  /**
+   * phi を固定した CVB0 で文章のトピック分布を推定する (乱数を使わないので結果は決定的)
+   *
+   * @param w 文章の単語列
+   * @param alpha ハイパーパラメータ
+   * @param iterations 反復回数
+   * @return トピック分布
+   */
+  double[] cvb0(final int[] w, final double alpha, final int iterations) {
+    final int n_m = w.length;
+
+    // 各単語のトピックの負担率 (一様分布で初期化)
+    final double[] gamma = new double[n_m * K];
+    final double[] n_k = new double[K];
+    int length = 0;
+    for (int i = 0; i < n_m; ++i) {
+      if (w[i] < V) {
+        for (int k = 0; k < K; ++k) {
+          gamma[i * K + k] = 1.0 / K;
+          n_k[k] += 1.0 / K;
+        }
+        ++length;
+      }
+    }
+
+    for (int n = 1; n <= iterations; ++n) {
+      for (int i = 0; i < n_m; ++i) {
+        final int v = w[i];
+        if (v >= V) {
+          continue;
+        }
+        final int offset = i * K;
+        double sum = 0;
+        for (int k = 0; k < K; ++k) {
+          final double g = (n_k[k] - gamma[offset + k] + alpha) * phi_vk.get(v * K + k);
+          n_k[k] -= gamma[offset + k];
+          gamma[offset + k] = g;
+          sum += g;
+        }
+        for (int k = 0; k < K; ++k) {
+          n_k[k] += gamma[offset + k] /= sum;
+        }
+      }
+    }
+
+    final double[] theta_k = new double[K];
+    for (int k = 0; k < K; ++k) {
+      theta_k[k] = (n_k[k] + alpha) / (length + K * alpha);
+    }
+    return theta_k;
+  }
+
+  /**
+   * 疎な ID の単語列を密な ID にする (語彙に無い単語は V 以上になり推定で無視される)
+   */
+  int[] map(final int[] w) {
+    if (ids == null) {
+      return w;
+    }
+    final int[] mapped = new int[w.length];
+    for (int i = 0; i < w.length; ++i) {
+      mapped[i] = ((w[i] >= 0) && (w[i] < ids.length)) ? ids[w[i]] : Integer.MAX_VALUE;
+    }
+    return mapped;
+  }
+
+  /**
+   * 複数の文章のトピック分布を並列に推定する
+   *
+   * @param w 文章の単語列 (CsaUtility.encode の疎な ID)
+   */
+  double[][] infer(final int[][] w, final double alpha, final int iterations, final Method method) {
+    final double[][] theta_mk = new double[w.length][];
+    IntStream.range(0, w.length).parallel().forEach(m -> {
+      final int[] w_m = map(w[m]);
+      theta_mk[m] = (method == Method.CVB0)
+        ? cvb0 (w_m, alpha, iterations)
+        : gibbs(w_m, alpha, iterations, ThreadLocalRandom.current());
+    });
+    return theta_mk;
+  }
+
+  private static int argmax(final double[] x) {
+    int index = 0;
+    for (int i = 1, length = x.length; i < length; ++i) {
+      if (x[i] > x[index]) {
+        index = i;
+      }
+    }
+    return index;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if ((args.length != 3) && (args.length != 4)) {
+      System.err.println("Usage: java LDAModel model-file alpha iterations [gibbs|cvb0] < corpus.txt");
+      return;
+    }
+
+    final LDAModel model      = LDAModel.load(new File(args[0]));
+    final double   alpha      = Double .parseDouble(args[1]);
+    final int      iterations = Integer.parseInt   (args[2]);
+    final Method   method     = (args.length == 4) ? Method.valueOf(args[3].toUpperCase()) : Method.GIBBS;
+    if (iterations < 1) {
+      System.err.println("iterations must be positive: " + iterations);
+      return;
+    }
+
+    final int[][] w;
+    try (BufferedReader in = new BufferedReader(new InputStreamReader(System.in))) {
+      w = MoveCorpus.readText(in);
+    }
+
+    final long start = System.nanoTime();
+    final double[][] theta_mk = model.infer(w, alpha, iterations, method);
+    final long elapsed = System.nanoTime() - start;
+
+    // 文章ごとに最も確率の高いトピックとトピック分布を出力する
+    for (double[] theta_k : theta_mk) {
+      StringBuilder builder = new StringBuilder();
+      builder.append(argmax(theta_k) + 1);
+      for (double theta : theta_k) {
+        builder.append(String.format(" %f", theta));
+      }
+      System.out.println(builder);
+    }
+    System.err.printf("%d documents in %.3f ms%n", w.length, elapsed * 1e-6);
+  }
+}
@@ -0,0 +1,128 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * CsaConverter が変換済みのファイルの一覧
+ *
+ * 1 行 1 ファイルのタブ区切りのテキストで、
+ *   パス (ディレクトリからの相対パス), サイズ, 更新時刻 (ミリ秒), 内容のハッシュ, 出力した行のハッシュ
+ * を持つ. 出力しなかった (手数が少なすぎる) ファイルの行のハッシュは "-".
+ */
+final class Manifest {
+
+  /**
+   * 出力しなかったファイルの行のハッシュ
+   */
+  static final String NO_LINE = "-";
+
+  static final class Entry {
+    final long size;
+    final long mtime;
+    final String hash;
+    final String lineHash;
+
+    Entry(long size, long mtime, String hash, String lineHash) {
+      this.size     = size;
+      this.mtime    = mtime;
+      this.hash     = hash;
+      this.lineHash = lineHash;
+    }
+  }
+
+  final Map<String, Entry> entries = new TreeMap<>();
+
+  /**
+   * 読み込む (ファイルが無ければ空)
+   */
+  static Manifest load(Path file) throws IOException {
+    Manifest manifest = new Manifest();
+    if (!Files.exists(file)) {
+      return manifest;
+    }
+    try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      for (String line; (line = in.readLine()) != null;) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        String[] fields = line.split("\t");
+        if (fields.length != 5) {
+          throw new IOException("invalid manifest: " + line);
+        }
+        manifest.entries.put(fields[0], new Entry(
+          Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3], fields[4]));
+      }
+    }
+    return manifest;
+  }
+
+  /**
+   * 一時ファイルに書いてから置き換える
+   */
+  void save(Path file) throws IOException {
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+        Entry entry = e.getValue();
+        out.write(e.getKey() + "\t" + entry.size + "\t" + entry.mtime + "\t" + entry.hash + "\t" + entry.lineHash);
+        out.newLine();
+      }
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @return SHA-256 の先頭 128 bit の 16 進表記
+   */
+  static String hash(byte[] data) {
+    try {
+      return hex(MessageDigest.getInstance("SHA-256").digest(data));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); // SHA-256 は必ずある
+    }
+  }
+
+  // 先頭 128 bit の 16 進表記
+  private static String hex(byte[] digest) {
+    StringBuilder builder = new StringBuilder(32);
+    for (int i = 0; i < 16; ++i) {
+      builder.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+      builder.append(Character.forDigit( digest[i]       & 0xf, 16));
+    }
+    return builder.toString();
+  }
+
+  /**
+   * ファイル全体を読み込まずにハッシュを求める (hash(Files.readAllBytes(file)) と同じ)
+   */
+  static String hash(Path file) throws IOException {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      try (InputStream in = Files.newInputStream(file)) {
+        byte[] buffer = new byte[1 << 16];
+        for (int n; (n = in.read(buffer)) > 0;) {
+          digest.update(buffer, 0, n);
+        }
+      }
+      return hex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); // SHA-256 は必ずある
+    }
+  }
+
+  static String lineHash(String line) {
+    return (line == null) ? NO_LINE : hash(line.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,364 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.function.IntConsumer;
+
+/**
+ * 指し手 ID (CsaUtility.encode) に変換済みの棋譜をまとめたバイナリのコーパス
+ *
+ * テキストのコーパスを毎回 split して encode し直さずに、メモリマップしてそのまま読める。
+ * 形式 (リトルエンディアン):
+ *   0: magic "MVC1", 4: 符号化 (0: u16, 1: int32, 2: varint), 8: 棋譜数 M (int64), 16: 手数の合計 (int64),
+ *   24: offsets の位置 (int64), 32: 指し手 ID の列
+ *   offsets は M+1 個の int64 で、棋譜 m の指し手は ID の列の [offsets[m], offsets[m+1]) バイト目。
+ *
+ *   Usage: java -cp . MoveCorpus corpus-file   (棋譜数と手数を出力する)
+ */
+final class MoveCorpus implements AutoCloseable {
+
+  /**
+   * ファイルの先頭に書くマジックナンバー ("MVC1")
+   */
+  private static final int MAGIC = 0x3143564D;
+
+  /**
+   * ヘッダのバイト数
+   */
+  private static final int HEADER_SIZE = 32;
+
+  /**
+   * 指し手 ID の符号化
+   */
+  enum Encoding {
+    U16,   // 2 byte (ID が 65536 未満のとき)
+    INT32, // 4 byte
+    VARINT // 7 bit ずつの可変長 (小さい ID ほど短い)
+  }
+
+  private final FileChannel channel;
+  private final Encoding encoding;
+  private final int size;
+  private final long numTokens;
+  private final LongBuffer offsets;
+  private final MappedByteBuffer data;
+
+  private MoveCorpus(FileChannel channel) throws IOException {
+    this.channel = channel;
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    while (header.hasRemaining()) {
+      if (channel.read(header, header.position()) < 0) {
+        throw new IOException("truncated header");
+      }
+    }
+    header.flip();
+    if (header.getInt() != MAGIC) {
+      throw new IOException("not a move corpus");
+    }
+    this.encoding  = Encoding.values()[header.getInt()];
+    long M         = header.getLong();
+    this.numTokens = header.getLong();
+    long position  = header.getLong();
+    if (M >= Integer.MAX_VALUE) {
+      throw new IOException("too many documents: " + M);
+    }
+    this.size = (int) M;
+
+    long dataSize = position - HEADER_SIZE;
+    if (dataSize > Integer.MAX_VALUE) {
+      throw new IOException("too large to map: " + dataSize);
+    }
+    this.data    = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, dataSize);
+    this.offsets = channel.map(FileChannel.MapMode.READ_ONLY, position, (M + 1) * Long.BYTES)
+      .order(ByteOrder.LITTLE_ENDIAN)
+      .asLongBuffer();
+    this.data.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * メモリマップして開く
+   */
+  static MoveCorpus open(Path file) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      return new MoveCorpus(channel);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return バイナリのコーパスなら true
+   */
+  static boolean isCorpus(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      while (magic.hasRemaining()) {
+        if (channel.read(magic) < 0) {
+          return false;
+        }
+      }
+      return magic.getInt(0) == MAGIC;
+    }
+  }
+
+  /**
+   * @return 棋譜数
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return 手数の合計
+   */
+  long numTokens() {
+    return numTokens;
+  }
+
+  Encoding encoding() {
+    return encoding;
+  }
+
+  /**
+   * 棋譜 m の指し手 ID を順に sink に渡す
+   */
+  void forEach(int m, IntConsumer sink) {
+    int begin = (int) offsets.get(m);
+    int end   = (int) offsets.get(m + 1);
+    switch (encoding) {
+    case U16:
+      for (int i = begin; i < end; i += Short.BYTES) {
+        sink.accept(data.getShort(i) & 0xffff);
+      }
+      break;
+    case INT32:
+      for (int i = begin; i < end; i += Integer.BYTES) {
+        sink.accept(data.getInt(i));
+      }
+      break;
+    case VARINT:
+      for (int i = begin; i < end;) {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+          byte b = data.get(i++);
+          value |= (b & 0x7f) << shift;
+          if (b >= 0) {
+            break;
+          }
+        }
+        sink.accept(value);
+      }
+      break;
+    }
+  }
+
+  /**
+   * @return 棋譜 m の指し手 ID
+   */
+  int[] document(int m) {
+    int[][] retval = {new int[64]};
+    int[] length = {0};
+    forEach(m, v -> {
+      if (length[0] == retval[0].length) {
+        retval[0] = Arrays.copyOf(retval[0], 2 * length[0]);
+      }
+      retval[0][length[0]++] = v;
+    });
+    return Arrays.copyOf(retval[0], length[0]);
+  }
+
+  /**
+   * @return 全ての棋譜 (LDA などの入力)
+   */
+  int[][] toArrays() {
+    int[][] retval = new int[size][];
+    for (int m = 0; m < size; ++m) {
+      retval[m] = document(m);
+    }
+    return retval;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * 1 行 1 局のテキスト (CsaConverter の出力) かバイナリのコーパスを読み込む
+   */
+  static int[][] read(File file) throws IOException {
+    if (isCorpus(file.toPath())) {
+      try (MoveCorpus corpus = open(file.toPath())) {
+        return corpus.toArrays();
+      }
+    }
+
+    try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+      return readText(in);
+    }
+  }
+
+  /**
+   * 1 行 1 局のテキストを読み込む (指し手は CsaUtility.tokenize で直接 int にする)
+   */
+  static int[][] readText(BufferedReader in) throws IOException {
+    List<int[]> data = new ArrayList<>();
+    int[] ids = new int[1024];
+    for (String line; (line = in.readLine()) != null;) {
+      if (ids.length < CsaUtility.capacity(line.length())) {
+        ids = new int[CsaUtility.capacity(line.length())];
+      }
+      int n = CsaUtility.tokenize(line, false, 0, ids);
+      if (n > 0) {
+        data.add(Arrays.copyOf(ids, n));
+      }
+    }
+    return data.toArray(new int[data.size()][]);
+  }
+
+  /**
+   * 棋譜を 1 局ずつ追加してコーパスを書き出す
+   *
+   * ID の列を先頭から順に書いて、close で末尾に offsets を書いてからヘッダを埋める。
+   */
+  static final class Writer implements AutoCloseable {
+    private final Path file;
+    private final Encoding encoding;
+    private final OutputStream out;
+    private final byte[] buffer = new byte[5];
+    private int[] ids = new int[1024]; // add(String) の作業領域
+
+    private long[] offsets = new long[1024];
+    private int size = 0;
+    private long position = 0;
+    private long numTokens = 0;
+
+    Writer(Path file, Encoding encoding) throws IOException {
+      this.file     = file;
+      this.encoding = encoding;
+      this.out      = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16);
+      this.out.write(new byte[HEADER_SIZE]); // close で書き直す
+    }
+
+    /**
+     * 指し手 ID を追加する
+     */
+    void add(int id) throws IOException {
+      int length;
+      switch (encoding) {
+      case U16:
+        if ((id >>> 16) != 0) {
+          throw new IllegalArgumentException("id does not fit in u16: " + id);
+        }
+        buffer[0] = (byte) id;
+        buffer[1] = (byte) (id >>> 8);
+        length = 2;
+        break;
+      case INT32:
+        buffer[0] = (byte) id;
+        buffer[1] = (byte) (id >>> 8);
+        buffer[2] = (byte) (id >>> 16);
+        buffer[3] = (byte) (id >>> 24);
+        length = 4;
+        break;
+      default:
+        length = 0;
+        for (int v = id; ; v >>>= 7) {
+          if ((v & ~0x7f) == 0) {
+            buffer[length++] = (byte) v;
+            break;
+          }
+          buffer[length++] = (byte) ((v & 0x7f) | 0x80);
+        }
+        break;
+      }
+      out.write(buffer, 0, length);
+      position += length;
+      ++numTokens;
+    }
+
+    /**
+     * 棋譜を区切る
+     */
+    void endDocument() {
+      if (size + 1 == offsets.length) {
+        offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+      }
+      offsets[++size] = position;
+    }
+
+    /**
+     * CsaConverter の 1 行 (1 局) を追加する (指し手の無い行は readText と同じく飛ばす)
+     *
+     * 行全体を ids に変換してから書くので、読めない符号があって例外を投げたときは何も書かない
+     * (書きかけの指し手が次の棋譜に混ざらない).
+     */
+    void add(String line) throws IOException {
+      if (ids.length < CsaUtility.capacity(line.length())) {
+        ids = new int[CsaUtility.capacity(line.length())];
+      }
+      final int n = CsaUtility.tokenize(line, false, 0, ids);
+      if (n == 0) {
+        return;
+      }
+      for (int i = 0; i < n; ++i) {
+        add(ids[i]);
+      }
+      endDocument();
+    }
+
+    @Override
+    public void close() throws IOException {
+      long offsetsPosition = HEADER_SIZE + position;
+      ByteBuffer tail = ByteBuffer.allocate((size + 1) * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      for (int m = 0; m <= size; ++m) {
+        tail.putLong(offsets[m]);
+      }
+      out.write(tail.array());
+      out.close();
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(MAGIC);
+      header.putInt(encoding.ordinal());
+      header.putLong(size);
+      header.putLong(numTokens);
+      header.putLong(offsetsPosition);
+      header.flip();
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+        while (header.hasRemaining()) {
+          channel.write(header, header.position());
+        }
+      }
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      System.err.println("Usage: java MoveCorpus corpus-file");
+      return;
+    }
+    try (MoveCorpus corpus = open(new File(args[0]).toPath())) {
+      System.out.printf("encoding     = %s%n", corpus.encoding());
+      System.out.printf("M            = %d%n", corpus.size());
+      System.out.printf("tokens       = %d%n", corpus.numTokens());
+    }
+  }
+}
@@ -0,0 +1,149 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.FileReader;
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.Paths;
+
+import java.util.Arrays;
+
+/**
+ * CsaConverter が出力した棋譜 (1 行 1 局) の指し手を word2vec で埋め込む
+ *
+ *   Build: javac -encoding UTF-8 -d out -sourcepath .:.. MoveVec.java
+ *   Usage: java -cp out MoveVec [-augment 0,1,2,3] [-threads n] [-min-count n] [-sample t] [-output file] corpus-file|- dimension window negative epocs alpha lambda
+ *
+ * 各局は CsaUtility.encode で BOS, 指し手, ..., EOS の ID 列にしてそのまま Word2Vec.Corpus に積む.
+ * corpus-file が CsaConverter -binary で作った MoveCorpus なら、テキストを介さずに ID を読む.
+ * -augment には CsaUtility の status (0: そのまま、1: 左右反転、2: 手番反転、3: 両方) をカンマ区切りで指定し、
+ * 指定した status ごとに同じ局を 1 文ずつ追加する.
+ */
+final class MoveVec {
+
+  /**
+   * 指し手 ID を Word2Vec の単語 ID に詰めながらコーパスを作る
+   */
+  private static final class Reader {
+    private final Word2Vec.Corpus.Builder builder = new Word2Vec.Corpus.Builder();
+    private final int[] dense = new int[CsaUtility.NUM_MOVES + 2]; // 指し手 ID → 単語 ID (未登録は -1)
+
+    Reader() {
+      Arrays.fill(dense, -1);
+    }
+
+    void add(final int move) {
+      final int index = (move == CsaUtility.BOS) ? CsaUtility.NUM_MOVES
+                      : (move == CsaUtility.EOS) ? CsaUtility.NUM_MOVES + 1
+                      : move;
+      if (dense[index] < 0) {
+        dense[index] = builder.add(CsaUtility.convertToString(move).trim());
+      } else {
+        builder.add(dense[index]);
+      }
+    }
+
+    void read(final BufferedReader in, final int[] augment) throws IOException {
+      for (String line; (line = in.readLine()) != null;) {
+        if (line.isBlank()) {
+          continue;
+        }
+        for (int status : augment) {
+          CsaUtility.encode(line, true, status, this::add);
+          builder.endSentence();
+        }
+      }
+    }
+
+    void read(final MoveCorpus corpus, final int[] augment) {
+      for (int m = 0, size = corpus.size(); m < size; ++m) {
+        for (int status : augment) {
+          add(CsaUtility.BOS);
+          corpus.forEach(m, id -> add(CsaUtility.flip(id, status)));
+          add(CsaUtility.EOS);
+          builder.endSentence();
+        }
+      }
+    }
+
+    Word2Vec.Corpus build() {
+      return builder.build();
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    int[]  augment  = {0};
+    int    threads  = 1;
+    int    minCount = 1;
+    double sample   = 0;
+    File   output   = null;
+
+    // オプション
+    int argi = 0;
+    for (; (argi + 1 < args.length) && args[argi].startsWith("-") && !args[argi].equals("-"); argi += 2) {
+      switch (args[argi]) {
+      case "-augment":
+        augment = Arrays.stream(args[argi + 1].split(",")).mapToInt(Integer::parseInt).toArray();
+        break;
+      case "-threads":
+        threads = Integer.parseInt(args[argi + 1]);
+        break;
+      case "-min-count":
+        minCount = Integer.parseInt(args[argi + 1]);
+        break;
+      case "-sample":
+        sample = Double.parseDouble(args[argi + 1]);
+        break;
+      case "-output":
+        output = new File(args[argi + 1]);
+        break;
+      default:
+        argi = args.length; // 不明なオプション
+        break;
+      }
+    }
+    if (args.length - argi != 7) {
+      System.err.println("Usage: java MoveVec [-augment 0,1,2,3] [-threads n] [-min-count n] [-sample t] [-output file] corpus-file|- dimension window negative epocs alpha lambda");
+      return;
+    }
+
+    final String file      = args[argi];
+    final int    dimension = Integer.parseInt   (args[argi + 1]);
+    final int    window    = Integer.parseInt   (args[argi + 2]);
+    final int    negative  = Integer.parseInt   (args[argi + 3]);
+    final int    epocs     = Integer.parseInt   (args[argi + 4]);
+    final double alpha     = Double .parseDouble(args[argi + 5]);
+    final double lambda    = Double .parseDouble(args[argi + 6]);
+
+    final Reader reader = new Reader();
+    if (!file.equals("-") && MoveCorpus.isCorpus(Paths.get(file))) {
+      try (MoveCorpus corpus = MoveCorpus.open(Paths.get(file))) {
+        reader.read(corpus, augment);
+      }
+    } else {
+      try (BufferedReader in = file.equals("-")
+           ? new BufferedReader(new InputStreamReader(System.in))
+           : new BufferedReader(new FileReader(file))) {
+        reader.read(in, augment);
+      }
+    }
+    final Word2Vec.Corpus corpus = reader.build().prune(minCount);
+
+    System.err.printf("V            = %d%n", corpus.vocabulary().size());
+    System.err.printf("sentences    = %d%n", corpus.size());
+    System.err.printf("tokens       = %d%n", corpus.numTokens());
+    System.err.printf("augment      = %s%n", Arrays.toString(augment));
+    System.err.printf("dimension    = %d%n", dimension);
+    System.err.printf("window       = %d%n", window);
+    System.err.printf("negative     = %d%n", negative);
+    System.err.printf("epocs        = %d%n", epocs);
+
+    final Word2Vec word2vec = new Word2Vec(corpus.vocabulary().size(), dimension);
+    word2vec.learn(corpus, window, negative, sample, epocs, alpha, lambda, threads);
+    if (output != null) {
+      word2vec.embeddings(corpus.vocabulary()).write(output);
+    } else {
+      word2vec.embeddings(corpus.vocabulary()).writeText(System.out);
+    }
+  }
+}
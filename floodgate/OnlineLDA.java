@@ -0,0 +1,523 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.FileReader;
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Random;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * オンライン変分ベイズによる LDA (Hoffman et al., Online Learning for Latent Dirichlet Allocation)
+ *
+ * 文章をミニバッチ単位で読みながらトピックごとの単語分布のパラメータ lambda を逐次更新するので、
+ * コーパス全体を保持する必要がなく、CsaConverter の出力をそのままパイプで流し込める。
+ * 語彙は前もって数えずに、初めて現れた指し手に密な ID を振って lambda の列を増やす。
+ * -checkpoint で lambda と更新回数を保存し、-resume で読み込めば、新しい棋譜で続きから学習できる。
+ *
+ *   Usage: java CsaConverter dir | java -cp . OnlineLDA [-resume file] [-checkpoint file] - num-topics alpha eta tau0 kappa batch-size num-docs passes [model-file]
+ */
+final class OnlineLDA {
+
+  /**
+   * トピック数
+   */
+  private final int K;
+
+  /**
+   * チェックポイントの先頭に書くマジックナンバー
+   */
+  private static final int MAGIC = 0x4F4C4431;
+
+  /**
+   * チェックポイントのヘッダのバイト数 (マジックナンバー、K、V、t)
+   */
+  private static final int HEADER_SIZE = 16;
+
+  /**
+   * 語彙数 (初めての指し手が現れるたびに増える)
+   */
+  private int V;
+
+  /**
+   * 密な ID から疎な ID (CsaUtility.encode の ID)
+   */
+  private int[] words = new int[256];
+
+  /**
+   * 疎な ID から密な ID (まだ現れていない指し手は -1)
+   */
+  private final int[] ids = new int[CsaUtility.NUM_MOVES];
+
+  /**
+   * 総文章数 (の見積もり)
+   */
+  private final double D;
+
+  /**
+   * ハイパーパラメータ
+   */
+  private final double alpha;
+  private final double eta;
+
+  /**
+   * 学習率 rho_t = (tau0 + t)^-kappa のパラメータ
+   */
+  private final double tau0;
+  private final double kappa;
+
+  /**
+   * トピックごとの単語分布の変分パラメータ (列は words.length ぶん確保して先頭の V 列を使う)
+   */
+  private final double[][] lambda_kv;
+
+  /**
+   * exp(E[log beta_kv])
+   */
+  private final double[][] expElogbeta_kv;
+
+  /**
+   * ミニバッチの十分統計量 (M ステップで使ったらその場で 0 に戻して使い回す)
+   */
+  private final double[][] sstats_kv;
+
+  /**
+   * 語彙が増えて expElogbeta_kv を求め直す必要があれば true
+   */
+  private boolean stale;
+
+  /**
+   * 更新回数
+   */
+  private int t;
+
+  private final Random rnd = new Random();
+
+  /**
+   * 語彙が空のモデルを作る
+   *
+   * @param K トピック数
+   * @param D 総文章数
+   */
+  OnlineLDA(final int K, final double D,
+            final double alpha, final double eta, final double tau0, final double kappa) {
+    this.K = K;
+    this.V = 0;
+    this.D = D;
+
+    this.alpha = alpha;
+    this.eta   = eta;
+    this.tau0  = tau0;
+    this.kappa = kappa;
+
+    Arrays.fill(ids, -1);
+    this.lambda_kv      = new double[K][words.length];
+    this.expElogbeta_kv = new double[K][words.length];
+    this.sstats_kv      = new double[K][words.length];
+  }
+
+  /**
+   * 列を n 個まで確保する
+   */
+  private void reserve(final int n) {
+    if (n <= words.length) {
+      return;
+    }
+    final int capacity = Math.max(2 * words.length, n);
+    words = Arrays.copyOf(words, capacity);
+    for (int k = 0; k < K; ++k) {
+      lambda_kv     [k] = Arrays.copyOf(lambda_kv     [k], capacity);
+      expElogbeta_kv[k] = Arrays.copyOf(expElogbeta_kv[k], capacity);
+      sstats_kv     [k] = Arrays.copyOf(sstats_kv     [k], capacity);
+    }
+  }
+
+  /**
+   * @return 疎な ID word の密な ID (初めての指し手なら lambda に列を足して新しい ID を振る)
+   */
+  int id(final int word) {
+    if ((word < 0) || (word >= CsaUtility.NUM_MOVES)) {
+      throw new IllegalArgumentException("not a move id: " + word);
+    }
+    if (ids[word] < 0) {
+      reserve(V + 1);
+      // Gamma(100, 1/100) の代わりに平均 1 分散 0.01 の正規分布で初期化する
+      for (int k = 0; k < K; ++k) {
+        lambda_kv[k][V] = Math.max(1.0 + 0.1 * rnd.nextGaussian(), 0.01);
+      }
+      words[V] = word;
+      ids[word] = V++;
+      stale = true;
+    }
+    return ids[word];
+  }
+
+  /**
+   * @return 語彙数
+   */
+  int size() {
+    return V;
+  }
+
+  /**
+   * @return 密な ID から疎な ID への対応 (LDAModel に保存する)
+   */
+  int[] words() {
+    return Arrays.copyOf(words, V);
+  }
+
+  /**
+   * ディガンマ関数
+   */
+  private static double digamma(double x) {
+    double retval = 0;
+    while (x < 6) {
+      retval -= 1 / x;
+      x += 1;
+    }
+    final double f = 1 / (x * x);
+    return retval + Math.log(x) - 0.5 / x
+      - f * (1.0/12 - f * (1.0/120 - f * (1.0/252 - f * (1.0/240 - f * (1.0/132)))));
+  }
+
+  private void update_expElogbeta() {
+    stale = false;
+    for (int k = 0; k < K; ++k) {
+      double sum = 0;
+      for (int v = 0; v < V; ++v) {
+        sum += lambda_kv[k][v];
+      }
+      final double psi = digamma(sum);
+      for (int v = 0; v < V; ++v) {
+        expElogbeta_kv[k][v] = Math.exp(digamma(lambda_kv[k][v]) - psi);
+      }
+    }
+  }
+
+  /**
+   * ミニバッチで lambda を更新する
+   *
+   * @param w ミニバッチの文章ごとの単語集合 (id で振った密な ID)
+   * @return 更新前のパラメータで求めたミニバッチのパープレキシティ
+   */
+  double update(final int[][] w) {
+    final int S = w.length;
+    if (stale) {
+      update_expElogbeta();
+    }
+
+    final double[]   gamma     = new double[K];
+    final double[]   expElogtheta = new double[K];
+
+    final double[] lambda_k = new double[K];
+    for (int k = 0; k < K; ++k) {
+      for (int v = 0; v < V; ++v) {
+        lambda_k[k] += lambda_kv[k][v];
+      }
+    }
+
+    int n = 0; // 全単語数
+    double sum = 0;
+    for (final int[] doc : w) {
+      final int n_m = doc.length;
+
+      // E ステップ: 文章のトピック分布の変分パラメータ gamma を求める
+      for (int k = 0; k < K; ++k) {
+        gamma[k] = Math.max(1.0 + 0.1 * rnd.nextGaussian(), 0.01);
+      }
+      final double[] phinorm = new double[n_m];
+      for (int iter = 0; iter < 100; ++iter) {
+        double gammaSum = 0;
+        for (int k = 0; k < K; ++k) {
+          gammaSum += gamma[k];
+        }
+        final double psi = digamma(gammaSum);
+        for (int k = 0; k < K; ++k) {
+          expElogtheta[k] = Math.exp(digamma(gamma[k]) - psi);
+        }
+
+        for (int i = 0; i < n_m; ++i) {
+          double dot = 1e-100;
+          for (int k = 0; k < K; ++k) {
+            dot += expElogtheta[k] * expElogbeta_kv[k][doc[i]];
+          }
+          phinorm[i] = dot;
+        }
+
+        double meanChange = 0;
+        for (int k = 0; k < K; ++k) {
+          double dot = 0;
+          for (int i = 0; i < n_m; ++i) {
+            dot += expElogbeta_kv[k][doc[i]] / phinorm[i];
+          }
+          final double value = alpha + expElogtheta[k] * dot;
+          meanChange += Math.abs(value - gamma[k]);
+          gamma[k] = value;
+        }
+        if (meanChange / K < 0.001) {
+          break;
+        }
+      }
+
+      // 十分統計量を集める
+      double gammaSum = 0;
+      for (int k = 0; k < K; ++k) {
+        gammaSum += gamma[k];
+      }
+      final double psi = digamma(gammaSum);
+      for (int k = 0; k < K; ++k) {
+        expElogtheta[k] = Math.exp(digamma(gamma[k]) - psi);
+      }
+      for (int i = 0; i < n_m; ++i) {
+        final int v = doc[i];
+        double dot = 1e-100;
+        for (int k = 0; k < K; ++k) {
+          dot += expElogtheta[k] * expElogbeta_kv[k][v];
+        }
+        for (int k = 0; k < K; ++k) {
+          sstats_kv[k][v] += expElogtheta[k] * expElogbeta_kv[k][v] / dot;
+        }
+      }
+
+      // パープレキシティ (E[theta] と E[beta] の点推定で求める)
+      for (int i = 0; i < n_m; ++i) {
+        final int v = doc[i];
+        double dot = 0;
+        for (int k = 0; k < K; ++k) {
+          dot += gamma[k] / gammaSum * lambda_kv[k][v] / lambda_k[k];
+        }
+        sum -= Math.log(dot);
+      }
+      n += n_m;
+    }
+
+    // M ステップ: lambda を自然勾配方向に rho だけ動かす
+    final double rho = Math.pow(tau0 + (++t), -kappa);
+    for (int k = 0; k < K; ++k) {
+      for (int v = 0; v < V; ++v) {
+        lambda_kv[k][v] = (1 - rho) * lambda_kv[k][v] + rho * (eta + D / S * sstats_kv[k][v]);
+        sstats_kv[k][v] = 0;
+      }
+    }
+    update_expElogbeta();
+
+    return Math.exp(sum / n);
+  }
+
+  /**
+   * @return トピックごとの単語分布 (lambda を正規化したもの)
+   */
+  double[][] phi_kv() {
+    final double[][] phi_kv = new double[K][V];
+    for (int k = 0; k < K; ++k) {
+      double sum = 0;
+      for (int v = 0; v < V; ++v) {
+        sum += lambda_kv[k][v];
+      }
+      for (int v = 0; v < V; ++v) {
+        phi_kv[k][v] = lambda_kv[k][v] / sum;
+      }
+    }
+    return phi_kv;
+  }
+
+  /**
+   * 入力を 1 周してミニバッチごとに更新する (指し手は id で密な ID に置き換える)
+   */
+  private void pass(final BufferedReader in, final int batchSize) throws IOException {
+    final List<int[]> batch = new ArrayList<>(batchSize);
+    int[] doc = new int[1024];
+    for (String line; (line = in.readLine()) != null;) {
+      if (doc.length < CsaUtility.capacity(line.length())) {
+        doc = new int[CsaUtility.capacity(line.length())];
+      }
+      final int n = CsaUtility.tokenize(line, false, 0, doc);
+      if (n == 0) {
+        continue;
+      }
+      for (int i = 0; i < n; ++i) {
+        doc[i] = id(doc[i]);
+      }
+      batch.add(Arrays.copyOf(doc, n));
+      if (batch.size() == batchSize) {
+        System.err.printf("batch[%d]: %f%n", t + 1, update(batch.toArray(new int[batch.size()][])));
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      System.err.printf("batch[%d]: %f%n", t + 1, update(batch.toArray(new int[batch.size()][])));
+    }
+  }
+
+  /**
+   * lambda、更新回数、語彙をチェックポイントに保存する (一時ファイルに書いてから置き換える)
+   *
+   * 形式 (リトルエンディアン): マジックナンバー, K, V, t (int32), 語彙 (int32 × V), lambda_kv (float64 × K × V、k ごと)
+   */
+  void save(final File file) throws IOException {
+    final Path path = file.toPath();
+    final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp,
+           StandardOpenOption.CREATE,
+           StandardOpenOption.TRUNCATE_EXISTING,
+           StandardOpenOption.WRITE)) {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + V * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(MAGIC).putInt(K).putInt(V).putInt(t);
+      for (int v = 0; v < V; ++v) {
+        header.putInt(words[v]);
+      }
+      header.flip();
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+
+      final ByteBuffer row = ByteBuffer.allocate(V * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      for (int k = 0; k < K; ++k) {
+        row.clear();
+        for (int v = 0; v < V; ++v) {
+          row.putDouble(lambda_kv[k][v]);
+        }
+        row.flip();
+        while (row.hasRemaining()) {
+          channel.write(row);
+        }
+      }
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * save したチェックポイントから続きを学習するモデルを作る (ハイパーパラメータは引数のものを使う)
+   */
+  static OnlineLDA load(final File file, final double D,
+                        final double alpha, final double eta, final double tau0, final double kappa) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      final ByteBuffer buffer = channel
+        .map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+        .order(ByteOrder.LITTLE_ENDIAN);
+      if ((buffer.limit() < HEADER_SIZE) || (buffer.getInt(0) != MAGIC)) {
+        throw new IOException("invalid online lda checkpoint: " + file);
+      }
+      final int K = buffer.getInt(4);
+      final int V = buffer.getInt(8);
+      final int t = buffer.getInt(12);
+      if ((K <= 0) || (V < 0) || (t < 0)
+          || (channel.size() != HEADER_SIZE + (long) V * Integer.BYTES + (long) K * V * Double.BYTES)) {
+        throw new IOException("truncated online lda checkpoint: " + file);
+      }
+
+      final OnlineLDA lda = new OnlineLDA(K, D, alpha, eta, tau0, kappa);
+      lda.reserve(V);
+      buffer.position(HEADER_SIZE);
+      for (int v = 0; v < V; ++v) {
+        final int word = buffer.getInt();
+        if ((word < 0) || (word >= CsaUtility.NUM_MOVES) || (lda.ids[word] >= 0)) {
+          throw new IOException("invalid vocabulary in online lda checkpoint: " + file);
+        }
+        lda.words[v] = word;
+        lda.ids[word] = v;
+      }
+      for (int k = 0; k < K; ++k) {
+        buffer.asDoubleBuffer().get(lda.lambda_kv[k], 0, V);
+        buffer.position(buffer.position() + V * Double.BYTES);
+      }
+      lda.V = V;
+      lda.t = t;
+      lda.stale = true;
+      return lda;
+    }
+  }
+
+  /**
+   * @return トピック数
+   */
+  int numTopics() {
+    return K;
+  }
+
+  public static void main(String[] args) throws IOException {
+    File resume     = null;
+    File checkpoint = null;
+
+    // オプション
+    int argi = 0;
+    for (; (argi + 1 < args.length) && args[argi].startsWith("-") && !args[argi].equals("-"); argi += 2) {
+      switch (args[argi]) {
+      case "-resume":
+        resume = new File(args[argi + 1]);
+        break;
+      case "-checkpoint":
+        checkpoint = new File(args[argi + 1]);
+        break;
+      default:
+        argi = args.length; // 不明なオプション
+        break;
+      }
+    }
+    if ((args.length - argi != 9) && (args.length - argi != 10)) {
+      System.err.println("Usage: java OnlineLDA [-resume file] [-checkpoint file] corpus-file|- num-topics alpha eta tau0 kappa batch-size num-docs passes [model-file]");
+      return;
+    }
+
+    final String file      = args[argi];
+    final int    K         = Integer.parseInt   (args[argi + 1]);
+    final double alpha     = Double .parseDouble(args[argi + 2]);
+    final double eta       = Double .parseDouble(args[argi + 3]);
+    final double tau0      = Double .parseDouble(args[argi + 4]);
+    final double kappa     = Double .parseDouble(args[argi + 5]);
+    final int    batchSize = Integer.parseInt   (args[argi + 6]);
+    final double D         = Double .parseDouble(args[argi + 7]);
+    final int    passes    = Integer.parseInt   (args[argi + 8]);
+
+    final OnlineLDA lda = (resume != null)
+      ? load(resume, D, alpha, eta, tau0, kappa)
+      : new OnlineLDA(K, D, alpha, eta, tau0, kappa);
+    if (lda.numTopics() != K) {
+      System.err.println("num-topics does not match the checkpoint: " + K + " != " + lda.numTopics());
+      return;
+    }
+
+    System.err.printf("K            = %d%n", K);
+    System.err.printf("V            = %d%n", lda.size());
+    System.err.printf("D            = %f%n", D);
+    System.err.printf("alpha        = %f%n", alpha);
+    System.err.printf("eta          = %f%n", eta  );
+    System.err.printf("tau0         = %f%n", tau0 );
+    System.err.printf("kappa        = %f%n", kappa);
+    System.err.printf("batch-size   = %d%n", batchSize);
+    System.err.printf("t            = %d%n", lda.t);
+
+    if ("-".equals(file)) {
+      // 標準入力は巻き戻せないので 1 周だけ
+      try (BufferedReader in = new BufferedReader(new InputStreamReader(System.in))) {
+        lda.pass(in, batchSize);
+      }
+    } else {
+      for (int pass = 1; pass <= passes; ++pass) {
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+          lda.pass(in, batchSize);
+        }
+      }
+    }
+    if (checkpoint != null) {
+      lda.save(checkpoint);
+    }
+
+    final int[] words = lda.words();
+    final double[][] phi_kv = lda.phi_kv();
+    LDA.dump(phi_kv, v -> CsaUtility.convertToString(words[v]));
+    if (args.length - argi == 10) {
+      LDAModel.save(new File(args[argi + 9]), phi_kv, words);
+    }
+  }
+}
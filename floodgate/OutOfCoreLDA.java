@@ -0,0 +1,506 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 単語列とトピック割り当てをメモリマップしたファイルに置いて、チャンクごとに順に処理する LDA
+ *
+ * ヒープに常駐するのは n_vk と n_k だけなので、メモリに載らない大きさのコーパスでも学習できる。
+ * corpus-file は CsaConverter のテキスト (UTF-8) か MoveCorpus のどちらでもよい。
+ * work-dir の単語列は、同じ corpus-file (パス、サイズ、更新時刻かハッシュが同じ) なら次の実行でも使い回す。
+ *
+ *   Usage: java -cp . OutOfCoreLDA corpus-file work-dir num-topics alpha beta sample-size [model-file]
+ */
+final class OutOfCoreLDA {
+
+  /**
+   * 1 度にマップする単語数 (これより長い文章はその文章ぶんだけマップする)
+   */
+  private static final int CHUNK_SIZE = 1 << 26;
+
+  /**
+   * トピック数
+   */
+  private final int K;
+
+  /**
+   * 語彙数
+   */
+  private final int V;
+
+  /**
+   * 単語列 (int32、リトルエンディアン)
+   */
+  private final File tokensFile;
+
+  /**
+   * 文章の開始位置 (int64、リトルエンディアン、文章数 + 1 個)
+   */
+  private final File docsFile;
+
+  /**
+   * 各単語のトピック (int16、リトルエンディアン)
+   */
+  private final File topicsFile;
+
+  /**
+   * 単語 v がトピック k である数
+   */
+  private final int[][] n_vk;
+
+  /**
+   * トピック k の単語数
+   */
+  private final int[] n_k;
+
+  /**
+   * @param K トピック数
+   * @param V 語彙数
+   * @param dir 作業ディレクトリ
+   */
+  OutOfCoreLDA(final int K, final int V, final File dir) {
+    if (K > Short.MAX_VALUE) {
+      throw new IllegalArgumentException("too many topics: " + K);
+    }
+    this.K = K;
+    this.V = V;
+
+    this.tokensFile = new File(dir, "tokens.bin");
+    this.docsFile   = new File(dir, "docs.bin");
+    this.topicsFile = new File(dir, "topics.bin");
+
+    this.n_vk = new int[V][K];
+    this.n_k  = new int[K];
+  }
+
+  /**
+   * コーパス (テキストか MoveCorpus) を作業ディレクトリの単語列ファイルに変換する
+   *
+   * コーパスは 1 度だけ読む. 疎な ID のまま単語列を書きながら語彙を数えて vocabulary.bin
+   * (密な ID ごとの疎な ID、int32) に書き、単語列を出現した指し手だけに詰めた ID にその場で置き換える.
+   */
+  static void prepare(final File corpus, final File dir) throws IOException {
+    dir.mkdirs();
+    final File tokensFile = new File(dir, "tokens.bin");
+    final CorpusStatistics.Counter counter = new CorpusStatistics.Counter();
+
+    try (FileChannel tokens = open(tokensFile);
+         FileChannel docs   = open(new File(dir, "docs.bin"))) {
+      final ByteBuffer tokenBuffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+      final ByteBuffer docBuffer   = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+      final long[] offset = {0};
+      docBuffer.putLong(offset[0]);
+      read(corpus, (ids, n) -> {
+        counter.add(ids, n);
+        for (int i = 0; i < n; ++i) {
+          if (!tokenBuffer.hasRemaining()) {
+            drain(tokenBuffer, tokens);
+          }
+          tokenBuffer.putInt(ids[i]);
+          ++offset[0];
+        }
+        if (!docBuffer.hasRemaining()) {
+          drain(docBuffer, docs);
+        }
+        docBuffer.putLong(offset[0]);
+      });
+      drain(tokenBuffer, tokens);
+      drain(docBuffer, docs);
+    }
+    final CorpusStatistics stats = counter.build();
+
+    try (FileChannel vocabulary = open(new File(dir, "vocabulary.bin"))) {
+      final ByteBuffer buffer = ByteBuffer.allocate(stats.size() * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      buffer.asIntBuffer().put(stats.words());
+      while (buffer.hasRemaining()) {
+        vocabulary.write(buffer);
+      }
+    }
+
+    // 疎な ID を密な ID に置き換える (CHUNK_SIZE ずつマップする)
+    try (FileChannel tokens = FileChannel.open(tokensFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      final long numTokens = tokens.size() / Integer.BYTES;
+      for (long base = 0; base < numTokens; base += CHUNK_SIZE) {
+        final int n = (int) Math.min(CHUNK_SIZE, numTokens - base);
+        final IntBuffer w = tokens.map(FileChannel.MapMode.READ_WRITE, base * Integer.BYTES, (long) n * Integer.BYTES)
+          .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        for (int i = 0; i < n; ++i) {
+          w.put(i, stats.id(w.get(i)));
+        }
+      }
+    }
+  }
+
+  /**
+   * 作業ディレクトリを作ったコーパス (パス、サイズ、更新時刻、内容のハッシュを Manifest の形式で持つ)
+   */
+  private static File sourceFile(final File dir) {
+    return new File(dir, "source.tsv");
+  }
+
+  /**
+   * prepare が全て終わってから書く (途中で止まった作業ディレクトリは作り直される)
+   */
+  private static void saveSource(final File corpus, final File dir) throws IOException {
+    final Path path = corpus.toPath();
+    final Manifest manifest = new Manifest();
+    manifest.entries.put(path.toAbsolutePath().normalize().toString(), new Manifest.Entry(
+      Files.size(path), Files.getLastModifiedTime(path).toMillis(), Manifest.hash(path), Manifest.NO_LINE));
+    manifest.save(sourceFile(dir).toPath());
+  }
+
+  /**
+   * @return 作業ディレクトリが corpus から作ったものなら true
+   *
+   * パス、サイズ、更新時刻が同じなら読まずに同じとみなし、パスか更新時刻だけが違えば内容のハッシュで比べる.
+   */
+  private static boolean isPreparedFrom(final File corpus, final File dir) throws IOException {
+    final Manifest manifest = Manifest.load(sourceFile(dir).toPath());
+    if (manifest.entries.size() != 1) {
+      return false;
+    }
+    final Path path = corpus.toPath();
+    final Map.Entry<String, Manifest.Entry> e = manifest.entries.entrySet().iterator().next();
+    final Manifest.Entry entry = e.getValue();
+    if (entry.size != Files.size(path)) {
+      return false;
+    }
+    if (e.getKey().equals(path.toAbsolutePath().normalize().toString())
+        && (entry.mtime == Files.getLastModifiedTime(path).toMillis())) {
+      return true;
+    }
+    return entry.hash.equals(Manifest.hash(path));
+  }
+
+  private interface DocumentConsumer {
+    void accept(int[] ids, int n) throws IOException;
+  }
+
+  /**
+   * コーパスを 1 局ずつ ID 列にして consumer に渡す (ids は使い回す、指し手の無い棋譜は飛ばす)
+   *
+   * MoveCorpus ならメモリマップして ID 列をそのまま読み、テキストなら UTF-8 で 1 行ずつ CsaUtility.tokenize する.
+   */
+  private static void read(final File corpus, final DocumentConsumer consumer) throws IOException {
+    final Path path = corpus.toPath();
+    if (MoveCorpus.isCorpus(path)) {
+      try (MoveCorpus moves = MoveCorpus.open(path)) {
+        final int[][] ids = {new int[1024]};
+        final int[] n = {0};
+        for (int m = 0, M = moves.size(); m < M; ++m) {
+          n[0] = 0;
+          moves.forEach(m, v -> {
+            if (n[0] == ids[0].length) {
+              ids[0] = Arrays.copyOf(ids[0], 2 * n[0]);
+            }
+            ids[0][n[0]++] = v;
+          });
+          if (n[0] > 0) {
+            consumer.accept(ids[0], n[0]);
+          }
+        }
+      }
+      return;
+    }
+
+    try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+      int[] ids = new int[1024];
+      for (String line; (line = in.readLine()) != null;) {
+        if (ids.length < CsaUtility.capacity(line.length())) {
+          ids = new int[CsaUtility.capacity(line.length())];
+        }
+        final int n = CsaUtility.tokenize(line, false, 0, ids);
+        if (n > 0) {
+          consumer.accept(ids, n);
+        }
+      }
+    }
+  }
+
+  /**
+   * prepare が書いた語彙 (密な ID ごとの疎な ID) を読む
+   */
+  static int[] vocabulary(final File dir) throws IOException {
+    try (FileChannel channel = FileChannel.open(new File(dir, "vocabulary.bin").toPath(), StandardOpenOption.READ)) {
+      final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+      while (buffer.hasRemaining() && (channel.read(buffer) > 0)) {
+      }
+      buffer.flip();
+      final int[] words = new int[buffer.remaining() / Integer.BYTES];
+      buffer.asIntBuffer().get(words);
+      return words;
+    }
+  }
+
+  private static FileChannel open(final File file) throws IOException {
+    return FileChannel.open(file.toPath(),
+      StandardOpenOption.CREATE,
+      StandardOpenOption.TRUNCATE_EXISTING,
+      StandardOpenOption.READ,
+      StandardOpenOption.WRITE);
+  }
+
+  private static void drain(final ByteBuffer buffer, final FileChannel channel) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * 単語列とトピック割り当てのファイルを前から順にマップしていくためのカーソル
+   */
+  private final class Chunks implements AutoCloseable {
+    private final FileChannel tokens;
+    private final FileChannel topics;
+    private final FileChannel docs;
+
+    private final ByteBuffer docBuffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+    private IntBuffer   w; ///< マップ中の単語列
+    private ShortBuffer z; ///< マップ中のトピック割り当て
+    private long base;     ///< マップ中の領域の先頭の単語番号
+    private long limit;    ///< マップ中の領域の末尾の単語番号
+
+    private long begin; ///< 現在の文章の先頭の単語番号
+    private long end;   ///< 現在の文章の末尾の単語番号
+
+    Chunks() throws IOException {
+      this.tokens = FileChannel.open(tokensFile.toPath(), StandardOpenOption.READ);
+      this.topics = FileChannel.open(topicsFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+      this.docs   = FileChannel.open(docsFile  .toPath(), StandardOpenOption.READ);
+
+      docBuffer.flip();
+      this.end = nextOffset();
+    }
+
+    private long nextOffset() throws IOException {
+      if (docBuffer.remaining() < Long.BYTES) {
+        docBuffer.compact();
+        while ((docs.read(docBuffer) > 0) && (docBuffer.position() < Long.BYTES)) {
+          // 1 要素読めるまで待つ
+        }
+        docBuffer.flip();
+        if (docBuffer.remaining() < Long.BYTES) {
+          return -1;
+        }
+      }
+      return docBuffer.getLong();
+    }
+
+    /**
+     * 次の文章に進む (文章がマップ中の領域からはみ出すなら次の領域をマップする)
+     *
+     * @return 次の文章があれば true
+     */
+    boolean next() throws IOException {
+      final long offset = nextOffset();
+      if (offset < 0) {
+        return false;
+      }
+      begin = end;
+      end   = offset;
+
+      if ((w == null) || (end > limit)) {
+        base  = begin;
+        limit = Math.min(tokens.size() / Integer.BYTES, begin + Math.max(CHUNK_SIZE, end - begin));
+        w = tokens.map(FileChannel.MapMode.READ_ONLY, base * Integer.BYTES, (limit - base) * Integer.BYTES)
+          .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        z = topics.map(FileChannel.MapMode.READ_WRITE, base * Short.BYTES, (limit - base) * Short.BYTES)
+          .order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+      }
+      return true;
+    }
+
+    int length() {
+      return (int) (end - begin);
+    }
+
+    int w(final int i) {
+      return w.get((int) (begin - base) + i);
+    }
+
+    int z(final int i) {
+      return z.get((int) (begin - base) + i);
+    }
+
+    void z(final int i, final int k) {
+      z.put((int) (begin - base) + i, (short) k);
+    }
+
+    @Override
+    public void close() throws IOException {
+      w = null;
+      z = null;
+      try {
+        tokens.close();
+        docs.close();
+      } finally {
+        topics.close();
+      }
+    }
+  }
+
+  /**
+   * @param alpha ハイパーパラメータ
+   * @param beta ハイパーパラメータ
+   * @param sampleSize サンプルサイズ
+   */
+  void inference(final double alpha, final double beta, final int sampleSize) throws IOException {
+    final Random rnd = new Random();
+
+    // 各単語のトピックをランダムに割り振る
+    final long numTokens = tokensFile.length() / Integer.BYTES;
+    if (numTokens == 0) {
+      throw new IOException("empty corpus: " + tokensFile);
+    }
+    try (FileChannel topics = open(topicsFile)) {
+      topics.write(ByteBuffer.allocate(Short.BYTES), (numTokens - 1) * Short.BYTES);
+    }
+    try (Chunks chunks = new Chunks()) {
+      while (chunks.next()) {
+        for (int i = 0, n_m = chunks.length(); i < n_m; ++i) {
+          final int k = rnd.nextInt(K);
+          chunks.z(i, k);
+          ++n_vk[chunks.w(i)][k];
+          ++n_k[k];
+        }
+      }
+    }
+
+    final int[] n_mk = new int[K]; // 処理中の文章のトピックごとの単語数
+    final double[] theta = new double[K+1];
+
+    // ギブスサンプリング
+    for (int n = 1; n <= sampleSize; ++n) {
+      double sum = 0;
+
+      try (Chunks chunks = new Chunks()) {
+        while (chunks.next()) {
+          final int n_m = chunks.length();
+
+          // 文章 m 内のトピック k の単語数はその場で数え直す
+          Arrays.fill(n_mk, 0);
+          for (int i = 0; i < n_m; ++i) {
+            ++n_mk[chunks.z(i)];
+          }
+
+          for (int i = 0; i < n_m; ++i) {
+            final int v = chunks.w(i);
+
+            {
+              final int k = chunks.z(i);
+              --n_mk   [k];
+              --n_vk[v][k];
+              --n_k    [k];
+            }
+
+            // 新しいトピックをサンプリング
+            int k = K - 1;
+            {
+              for (int j = 0; j < K; ++j) {
+                theta[j+1] = theta[j]
+                  + (n_mk   [j] + alpha   )
+                  * (n_vk[v][j] + beta    )
+                  / (n_k    [j] + beta * V);
+              }
+              double xi = theta[K] * rnd.nextDouble();
+              for (int j = 1; j <= K; ++j) {
+                if (xi < theta[j]) {
+                  k = j - 1;
+                  break;
+                }
+              }
+            }
+
+            chunks.z(i, k);
+            ++n_mk   [k];
+            ++n_vk[v][k];
+            ++n_k    [k];
+          }
+
+          // パープレキシティ (theta_mk は保持せずに文章ごとに求める)
+          for (int i = 0; i < n_m; ++i) {
+            final int v = chunks.w(i);
+            double dot = 0;
+            for (int k = 0; k < K; ++k) {
+              dot += (n_mk   [k] + alpha) / (n_m      + K * alpha)
+                   * (n_vk[v][k] + beta ) / (n_k[k] + V * beta );
+            }
+            sum -= Math.log(dot);
+          }
+        }
+      }
+
+      System.err.printf("iter[%d]: %f%n", n, Math.exp(sum / numTokens));
+    }
+  }
+
+  /**
+   * @return トピックごとの単語分布
+   */
+  double[][] phi_kv(final double beta) {
+    final double[][] phi_kv = new double[K][V];
+    for (int k = 0; k < K; ++k) {
+      for (int v = 0; v < V; ++v) {
+        phi_kv[k][v] = (n_vk[v][k] + beta) / (n_k[k] + V * beta);
+      }
+    }
+    return phi_kv;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if ((args.length != 6) && (args.length != 7)) {
+      System.err.println("Usage: java OutOfCoreLDA corpus-file work-dir num-topics alpha beta sample-size [model-file]");
+      return;
+    }
+
+    final File   file       = new File(args[0]);
+    final File   dir        = new File(args[1]);
+    final int    K          = Integer.parseInt   (args[2]);
+    final double alpha      = Double .parseDouble(args[3]);
+    final double beta       = Double .parseDouble(args[4]);
+    final int    sampleSize = Integer.parseInt   (args[5]);
+
+    // 作業ディレクトリに単語列が無いか、別のコーパスか変わったコーパスから作ったものなら作り直す
+    if (!new File(dir, "tokens.bin").exists() || !new File(dir, "docs.bin").exists()
+        || !new File(dir, "vocabulary.bin").exists() || !isPreparedFrom(file, dir)) {
+      prepare(file, dir);
+      saveSource(file, dir);
+    }
+
+    final int[] words = vocabulary(dir);
+    final int V = words.length;
+
+    System.err.printf("K            = %d%n", K);
+    System.err.printf("V            = %d%n", V);
+    System.err.printf("alpha        = %f%n", alpha);
+    System.err.printf("beta         = %f%n", beta );
+    System.err.printf("sample-size  = %d%n", sampleSize);
+
+    OutOfCoreLDA lda = new OutOfCoreLDA(K, V, dir);
+    lda.inference(alpha, beta, sampleSize);
+
+    final double[][] phi_kv = lda.phi_kv(beta);
+    LDA.dump(phi_kv, v -> CsaUtility.convertToString(words[v]));
+    if (args.length == 7) {
+      LDAModel.save(new File(args[6]), phi_kv, words);
+    }
+  }
+}
@@ -0,0 +1,327 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.function.LongConsumer;
+
+/**
+ * 平手の初期局面から CsaConverter の 1 行 (空白区切りの指し手) を再生して、局面の Zobrist ハッシュを求める
+ *
+ * CsaUtility.encode は移動先と駒しか見ないが、局面 (盤上の駒、持ち駒、手番) ごとの 64 bit ハッシュや、
+ * 局面と指し手の組のハッシュを 1 手ごとのトークンにすれば、同じ手でも局面の違いを区別して学習できる.
+ * 指し手を適用するだけで合法手の生成はしないので、盤は 81 マスの byte 配列で持ち、ハッシュは差分で更新する.
+ * MoveCorpus は移動元を持たないので再生できない (テキストのコーパスを使う).
+ *
+ *   Usage: java -cp . Position [-features position|move] corpus-file|- > tokens.txt
+ *
+ * 出力は 1 行 1 局で、1 手ごとに 16 桁の 16 進数のトークンを空白区切りで並べる (Word2Vec でそのまま読める).
+ * 初期局面から再生できない (駒の無いマスから動かす、持っていない駒を打つなど) 棋譜は出力しない.
+ */
+final class Position {
+
+  /**
+   * 1 手ごとに出力するトークン
+   */
+  enum Features {
+    /**
+     * 指す前の局面のハッシュ
+     */
+    POSITION,
+
+    /**
+     * 指す前の局面と指し手の組のハッシュ
+     */
+    MOVE,
+  }
+
+  private static final int NUM_PIECES = 14; // CsaUtility の駒の番号 (歩, 香, 桂, 銀, 金, 角, 飛, 王, と, 杏, 圭, 全, 馬, 龍)
+  private static final int NUM_HANDS  = 7;  // 持ち駒になる駒 (歩〜飛)
+  private static final int KING       = 7;
+  private static final int EMPTY      = -1;
+
+  /**
+   * 成った駒 (成れない駒は -1)
+   */
+  private static final int[] PROMOTED = {8, 9, 10, 11, -1, 12, 13, -1, -1, -1, -1, -1, -1, -1};
+
+  /**
+   * 取ったときに持ち駒になる駒
+   */
+  private static final int[] UNPROMOTED = {0, 1, 2, 3, 4, 5, 6, 7, 0, 1, 2, 3, 5, 6};
+
+  /**
+   * 持ち駒の最大数
+   */
+  private static final int[] MAX_HANDS = {18, 4, 4, 4, 4, 2, 2};
+
+  /**
+   * 平手の初期局面の 1 段目 (9 筋から 1 筋)
+   */
+  private static final int[] BACK_RANK = {1, 2, 3, 4, 7, 4, 3, 2, 1};
+
+  /**
+   * Zobrist ハッシュの乱数 (実行ごとに同じトークンになるように種を固定する)
+   */
+  private static final long SEED = 0x5EED_F100_D6A7_E000L;
+  private static final long[][] BOARD_KEYS = new long[2 * NUM_PIECES][81]; // [手番 * 14 + 駒][マス]
+  private static final long[][][] HAND_KEYS = new long[2][NUM_HANDS][]; // [手番][駒][枚数] (0 枚は 0)
+  private static final long SIDE_KEY;
+
+  static {
+    final SplittableRandom rnd = new SplittableRandom(SEED);
+    for (long[] keys : BOARD_KEYS) {
+      for (int sq = 0; sq < 81; ++sq) {
+        keys[sq] = rnd.nextLong();
+      }
+    }
+    for (int color = 0; color < 2; ++color) {
+      for (int d = 0; d < NUM_HANDS; ++d) {
+        final long[] keys = HAND_KEYS[color][d] = new long[MAX_HANDS[d] + 1];
+        for (int n = 1; n < keys.length; ++n) {
+          keys[n] = rnd.nextLong();
+        }
+      }
+    }
+    SIDE_KEY = rnd.nextLong();
+  }
+
+  /**
+   * マス ((筋 - 1) * 9 + (段 - 1)、CsaUtility.encode と同じ) の駒 (手番 * 14 + 駒、空きは -1)
+   */
+  private final byte[] board = new byte[81];
+
+  /**
+   * 持ち駒の枚数
+   */
+  private final int[][] hands = new int[2][NUM_HANDS];
+
+  /**
+   * 手番 (0: 先手、1: 後手)
+   */
+  private int side;
+
+  private long hash;
+
+  Position() {
+    reset();
+  }
+
+  /**
+   * 平手の初期局面にする
+   */
+  void reset() {
+    Arrays.fill(board, (byte) EMPTY);
+    for (int[] hand : hands) {
+      Arrays.fill(hand, 0);
+    }
+    side = 0;
+    hash = 0;
+    for (int x = 0; x < 9; ++x) {
+      put(x * 9 + 0, 1, BACK_RANK[8 - x]);
+      put(x * 9 + 2, 1, 0);
+      put(x * 9 + 6, 0, 0);
+      put(x * 9 + 8, 0, BACK_RANK[8 - x]);
+    }
+    put(7 * 9 + 1, 1, 6); // 8 二飛
+    put(1 * 9 + 1, 1, 5); // 2 二角
+    put(7 * 9 + 7, 0, 5); // 8 八角
+    put(1 * 9 + 7, 0, 6); // 2 八飛
+  }
+
+  /**
+   * @return 局面のハッシュ
+   */
+  long hash() {
+    return hash;
+  }
+
+  /**
+   * @return 手番 (0: 先手、1: 後手)
+   */
+  int side() {
+    return side;
+  }
+
+  private void put(final int sq, final int color, final int d) {
+    final int p = color * NUM_PIECES + d;
+    board[sq] = (byte) p;
+    hash ^= BOARD_KEYS[p][sq];
+  }
+
+  private void remove(final int sq) {
+    hash ^= BOARD_KEYS[board[sq]][sq];
+    board[sq] = EMPTY;
+  }
+
+  private void addHand(final int color, final int d, final int delta) {
+    final int[] hand = hands[color];
+    final int n = hand[d] + delta;
+    if ((n < 0) || (n > MAX_HANDS[d])) {
+      throw new IllegalArgumentException("invalid hand: " + d);
+    }
+    hash ^= HAND_KEYS[color][d][hand[d]] ^ HAND_KEYS[color][d][n];
+    hand[d] = n;
+  }
+
+  /**
+   * line の offset 文字目から始まる符号 ("+7776FU" など) を指す
+   *
+   * @return 指し手の番号 ((移動元 * 81 + 移動先) * 14 + 駒、駒打ちの移動元は 81)
+   * @throws IllegalArgumentException この局面では指せない符号のとき
+   */
+  int move(final CharSequence line, final int offset) {
+    if (offset + 7 > line.length()) {
+      throw new IllegalArgumentException("invalid move: " + line.subSequence(offset, line.length()));
+    }
+    final int color = (line.charAt(offset) == '+') ? 0 : 1;
+    final int sx = line.charAt(offset + 1) - '1';
+    final int sy = line.charAt(offset + 2) - '1';
+    final int ex = line.charAt(offset + 3) - '1';
+    final int ey = line.charAt(offset + 4) - '1';
+    final int d  = CsaUtility.piece(line.charAt(offset + 5), line.charAt(offset + 6));
+    if ((color != side) || (ex < 0) || (ex > 8) || (ey < 0) || (ey > 8)) {
+      throw new IllegalArgumentException("invalid move: " + line.subSequence(offset, offset + 7));
+    }
+    final int to = ex * 9 + ey;
+
+    final int from;
+    if ((sx < 0) || (sy < 0)) {
+      // 駒打ち
+      if ((d >= NUM_HANDS) || (board[to] != EMPTY)) {
+        throw new IllegalArgumentException("invalid drop: " + line.subSequence(offset, offset + 7));
+      }
+      from = 81;
+      addHand(color, d, -1);
+    } else {
+      if ((sx > 8) || (sy > 8)) {
+        throw new IllegalArgumentException("invalid move: " + line.subSequence(offset, offset + 7));
+      }
+      from = sx * 9 + sy;
+      final int p = board[from];
+      final int q = board[to];
+      if ((p == EMPTY) || (p / NUM_PIECES != color)
+          || ((d != p % NUM_PIECES) && (d != PROMOTED[p % NUM_PIECES]))
+          || ((q != EMPTY) && ((q / NUM_PIECES == color) || (q % NUM_PIECES == KING)))) {
+        throw new IllegalArgumentException("invalid move: " + line.subSequence(offset, offset + 7));
+      }
+      if (q != EMPTY) {
+        remove(to);
+        addHand(color, UNPROMOTED[q % NUM_PIECES], 1);
+      }
+      remove(from);
+    }
+    put(to, color, d);
+
+    side ^= 1;
+    hash ^= SIDE_KEY;
+    return (from * 81 + to) * NUM_PIECES + d;
+  }
+
+  /**
+   * @return 局面 hash で指し手 move を指すことを表すハッシュ
+   */
+  static long feature(final long hash, final int move) {
+    return Deduplicator.mix(hash ^ ((move + 1) * 0x9E3779B97F4A7C15L));
+  }
+
+  /**
+   * 初期局面から line の指し手を順に指し、1 手ごとに features のハッシュを sink に渡す
+   *
+   * @return 指した手数
+   * @throws IllegalArgumentException 再生できない棋譜のとき (それまでの手は sink に渡している)
+   */
+  int replay(final CharSequence line, final Features features, final LongConsumer sink) {
+    reset();
+    int plies = 0;
+    for (int i = 0, length = line.length(); i < length;) {
+      if (line.charAt(i) <= ' ') {
+        ++i;
+        continue;
+      }
+      final long before = hash;
+      final int move = move(line, i);
+      sink.accept((features == Features.POSITION) ? before : feature(before, move));
+      ++plies;
+      while ((i < length) && (line.charAt(i) > ' ')) {
+        ++i;
+      }
+    }
+    return plies;
+  }
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  // 16 桁の 16 進数
+  private static void appendHex(final StringBuilder builder, final long value) {
+    for (int shift = 60; shift >= 0; shift -= 4) {
+      builder.append(HEX[(int) (value >>> shift) & 0xf]);
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    Features features = Features.POSITION;
+
+    // オプション
+    int argi = 0;
+    for (; (argi + 1 < args.length) && args[argi].startsWith("-") && !args[argi].equals("-"); argi += 2) {
+      switch (args[argi]) {
+      case "-features":
+        try {
+          features = Features.valueOf(args[argi + 1].toUpperCase());
+        } catch (IllegalArgumentException e) {
+          argi = args.length; // 不明なトークン
+        }
+        break;
+      default:
+        argi = args.length; // 不明なオプション
+        break;
+      }
+    }
+    if (args.length - argi != 1) {
+      System.err.println("Usage: java Position [-features position|move] corpus-file|-");
+      return;
+    }
+
+    final Position position = new Position();
+    final StringBuilder builder = new StringBuilder(1 << 12);
+    final LongConsumer sink = hash -> {
+      if (builder.length() > 0) {
+        builder.append(' ');
+      }
+      appendHex(builder, hash);
+    };
+
+    long games = 0;
+    long skipped = 0;
+    long plies = 0;
+    final long start = System.nanoTime();
+    try (BufferedReader in = args[argi].equals("-")
+           ? new BufferedReader(new InputStreamReader(System.in))
+           : new BufferedReader(new FileReader(args[argi]));
+         Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16)) {
+      for (String line; (line = in.readLine()) != null;) {
+        if (line.isBlank()) {
+          continue;
+        }
+        builder.setLength(0);
+        try {
+          plies += position.replay(line, features, sink);
+        } catch (IllegalArgumentException e) {
+          ++skipped;
+          continue;
+        }
+        builder.append('\n');
+        out.append(builder);
+        ++games;
+      }
+    }
+    final long elapsed = System.nanoTime() - start;
+    System.err.printf("%d games (%d skipped), %d plies in %.3f ms%n", games, skipped, plies, elapsed * 1e-6);
+  }
+}
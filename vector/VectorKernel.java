@@ -0,0 +1,69 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+///
+/// jdk.incubator.vector による SIMD の実装.
+///
+/// 普通の javac *.java でルートをビルドできるように、別のディレクトリに置いて必要なときだけビルドする.
+///
+///   Build: javac -d . *.java && javac --add-modules jdk.incubator.vector -cp . -d . vector/VectorKernel.java
+///   Run:   java --add-modules jdk.incubator.vector -cp . Word2Vec ...
+///
+final class VectorKernel implements Kernel {
+
+  private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+  @Override
+  public float dot(final float[] x, final int i, final float[] y, final int j, final int n) {
+    FloatVector acc = FloatVector.zero(SPECIES);
+    int k = 0;
+    for (int bound = SPECIES.loopBound(n); k < bound; k += SPECIES.length()) {
+      final FloatVector xv = FloatVector.fromArray(SPECIES, x, i + k);
+      final FloatVector yv = FloatVector.fromArray(SPECIES, y, j + k);
+      acc = xv.fma(yv, acc);
+    }
+    float retval = acc.reduceLanes(VectorOperators.ADD);
+    for (; k < n; ++k) {
+      retval += x[i + k] * y[j + k];
+    }
+    return retval;
+  }
+
+  @Override
+  public void saxpby(final float a, final float[] x, final int i,
+                     final float b, final float[] y, final int j, final int n) {
+    int k = 0;
+    for (int bound = SPECIES.loopBound(n); k < bound; k += SPECIES.length()) {
+      final FloatVector xv = FloatVector.fromArray(SPECIES, x, i + k);
+      final FloatVector yv = FloatVector.fromArray(SPECIES, y, j + k);
+      xv.mul(a).add(yv.mul(b)).intoArray(y, j + k);
+    }
+    for (; k < n; ++k) {
+      y[j + k] = a * x[i + k] + b * y[j + k];
+    }
+  }
+
+  @Override
+  public void update(final float a, final float b,
+                     final float[] x, final int i, final float[] y, final int j, final int n) {
+    int k = 0;
+    for (int bound = SPECIES.loopBound(n); k < bound; k += SPECIES.length()) {
+      final FloatVector xv = FloatVector.fromArray(SPECIES, x, i + k);
+      final FloatVector yv = FloatVector.fromArray(SPECIES, y, j + k);
+      yv.mul(a).add(xv.mul(b)).intoArray(x, i + k);
+      xv.mul(a).add(yv.mul(b)).intoArray(y, j + k);
+    }
+    for (; k < n; ++k) {
+      final float xk = x[i + k];
+      final float yk = y[j + k];
+      x[i + k] = a * yk + b * xk;
+      y[j + k] = a * xk + b * yk;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "vector(" + SPECIES.length() + " lanes)";
+  }
+}